@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.helper;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests {@link IdSelectionBuilder}
+ */
+public class IdSelectionBuilderTest extends AndroidTestCase {
+
+    public void testBuild_noIds_returnsNoSelections() {
+        List<String> selections = IdSelectionBuilder.build("_id", Collections.<Long>emptyList());
+
+        assertTrue(selections.isEmpty());
+    }
+
+    public void testBuild_consecutiveIds_returnsRange() {
+        List<String> selections = IdSelectionBuilder.build("_id", Arrays.asList(1l, 2l, 3l, 4l));
+
+        assertEquals(Arrays.asList("_id BETWEEN 1 AND 4"), selections);
+    }
+
+    public void testBuild_idsWithGaps_returnsRangesAndInList() {
+        List<String> selections =
+                IdSelectionBuilder.build("_id", Arrays.asList(1l, 2l, 3l, 7l, 9l, 10l, 11l, 20l));
+
+        assertEquals(Arrays.asList("_id BETWEEN 1 AND 3 OR _id BETWEEN 9 AND 11 OR _id IN (7,20)"),
+                selections);
+    }
+
+    public void testBuild_unsortedIds_sortsIds() {
+        List<String> selections = IdSelectionBuilder.build("_id", Arrays.asList(3l, 1l, 2l));
+
+        assertEquals(Arrays.asList("_id BETWEEN 1 AND 3"), selections);
+    }
+
+    public void testBuild_manyIdsWithGaps_splitsIntoSelectionsWithMaxTerms() {
+        List<Long> ids = new ArrayList<Long>();
+        for (long i = 0; i < IdSelectionBuilder.MAX_TERMS * 2; i++) {
+            ids.add(i * 2);
+        }
+
+        List<String> selections = IdSelectionBuilder.build("_id", ids);
+
+        assertEquals(2, selections.size());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.helper;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tests the {@link IdempotencyIds}
+ */
+public class IdempotencyIdsTest extends AndroidTestCase {
+
+    public void testEnsureId_nullMetadata_createsMetadataWithId() {
+        JsonObject metadata = parse(IdempotencyIds.ensureId(null));
+
+        assertTrue(metadata.has(IdempotencyIds.ID));
+    }
+
+    public void testEnsureId_metadataWithoutId_addsIdAndKeepsFields() {
+        JsonObject metadata = parse(
+                IdempotencyIds.ensureId("{\"timestamp\":\"2014-06-01T10:00:00.000Z\"}"));
+
+        assertTrue(metadata.has(IdempotencyIds.ID));
+        assertEquals("2014-06-01T10:00:00.000Z", metadata.get("timestamp").getAsString());
+    }
+
+    public void testEnsureId_emptyObject_addsId() {
+        JsonObject metadata = parse(IdempotencyIds.ensureId(" { } "));
+
+        assertTrue(metadata.has(IdempotencyIds.ID));
+        assertEquals(1, metadata.entrySet().size());
+    }
+
+    public void testEnsureId_nestedIdOnly_addsId() {
+        JsonObject metadata = parse(IdempotencyIds.ensureId("{\"location\":{\"id\":\"2\"}}"));
+
+        assertTrue(metadata.has(IdempotencyIds.ID));
+        assertEquals("2", metadata.getAsJsonObject("location").get("id").getAsString());
+    }
+
+    public void testEnsureIds_addsIdsToPoints() {
+        ContentValues point = new ContentValues();
+        point.put(Streams.STREAM_METADATA, "{}");
+
+        IdempotencyIds.ensureIds(new ContentValues[]{point}, Streams.STREAM_METADATA);
+
+        assertTrue(parse(point.getAsString(Streams.STREAM_METADATA)).has(IdempotencyIds.ID));
+    }
+
+    public void testEnsureId_metadataWithId_returnsMetadata() {
+        String metadata = "{\"id\":\"1\"}";
+
+        assertSame(metadata, IdempotencyIds.ensureId(metadata));
+    }
+
+    public void testEnsureId_differentPoints_generatesDifferentIds() {
+        String first = parse(IdempotencyIds.ensureId(null)).get(IdempotencyIds.ID).getAsString();
+        String second = parse(IdempotencyIds.ensureId(null)).get(IdempotencyIds.ID).getAsString();
+
+        assertFalse(first.equals(second));
+    }
+
+    public void testNewId_manyIds_areUniqueUuids() {
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String id = IdempotencyIds.newId();
+            assertEquals(id, UUID.fromString(id).toString());
+            ids.add(id);
+        }
+
+        assertEquals(1000, ids.size());
+    }
+
+    public void testEnsureId_invalidMetadata_returnsMetadata() {
+        assertEquals("not json {", IdempotencyIds.ensureId("not json {"));
+    }
+
+    private static JsonObject parse(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+}
@@ -23,6 +23,7 @@ import android.database.MatrixCursor;
 import android.test.AndroidTestCase;
 
 import org.ohmage.helper.SelectParamBuilder;
+import org.ohmage.provider.StreamContentProvider.StreamSummary;
 import org.ohmage.streams.StreamContract;
 
 import static org.mockito.Mockito.mock;
@@ -56,14 +57,14 @@ public class StreamsTest extends AndroidTestCase {
     public void testStreams_withProvider_queriesDbForAllDistinctStreamVersionPairs()
             throws Exception {
         Cursor fakeCursor = new MatrixCursor(COLUMNS);
-        when(fakeContentProviderClient.query(StreamContract.Streams.CONTENT_URI,
+        when(fakeContentProviderClient.query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION}, "", new String[]{}, null))
                 .thenReturn(fakeCursor);
 
         new Streams(fakeContentProviderClient);
 
-        verify(fakeContentProviderClient).query(StreamContract.Streams.CONTENT_URI,
+        verify(fakeContentProviderClient).query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION}, "", new String[]{}, null);
     }
@@ -72,7 +73,7 @@ public class StreamsTest extends AndroidTestCase {
             throws Exception {
         select.and(StreamContract.Streams.USERNAME, fakeAccount.name);
         Cursor fakeCursor = new MatrixCursor(COLUMNS);
-        when(fakeContentProviderClient.query(StreamContract.Streams.CONTENT_URI,
+        when(fakeContentProviderClient.query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION},
                 select.buildSelection(), select.buildParams(), null))
@@ -80,7 +81,7 @@ public class StreamsTest extends AndroidTestCase {
 
         new Streams(fakeContentProviderClient, fakeAccount);
 
-        verify(fakeContentProviderClient).query(StreamContract.Streams.CONTENT_URI,
+        verify(fakeContentProviderClient).query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION},
                 select.buildSelection(), select.buildParams(), null);
@@ -91,7 +92,7 @@ public class StreamsTest extends AndroidTestCase {
         select.and(StreamContract.Streams.USERNAME, fakeAccount.name);
         select.and(StreamContract.Streams.STREAM_ID, fakeStreamId);
         Cursor fakeCursor = new MatrixCursor(COLUMNS);
-        when(fakeContentProviderClient.query(StreamContract.Streams.CONTENT_URI,
+        when(fakeContentProviderClient.query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION},
                 select.buildSelection(), select.buildParams(), null))
@@ -99,7 +100,7 @@ public class StreamsTest extends AndroidTestCase {
 
         new Streams(fakeContentProviderClient, fakeAccount, fakeStreamId);
 
-        verify(fakeContentProviderClient).query(StreamContract.Streams.CONTENT_URI,
+        verify(fakeContentProviderClient).query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION},
                 select.buildSelection(), select.buildParams(), null);
@@ -111,7 +112,7 @@ public class StreamsTest extends AndroidTestCase {
         select.and(StreamContract.Streams.STREAM_ID, fakeStreamId);
         select.and(StreamContract.Streams.STREAM_VERSION, fakeStreamVersion.toString());
         Cursor fakeCursor = new MatrixCursor(COLUMNS);
-        when(fakeContentProviderClient.query(StreamContract.Streams.CONTENT_URI,
+        when(fakeContentProviderClient.query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION},
                 select.buildSelection(), select.buildParams(), null))
@@ -119,7 +120,7 @@ public class StreamsTest extends AndroidTestCase {
 
         new Streams(fakeContentProviderClient, fakeAccount, fakeStreamId, fakeStreamVersion);
 
-        verify(fakeContentProviderClient).query(StreamContract.Streams.CONTENT_URI,
+        verify(fakeContentProviderClient).query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION},
                 select.buildSelection(), select.buildParams(), null);
@@ -130,7 +131,7 @@ public class StreamsTest extends AndroidTestCase {
         for (int i = 0; i < 10; i++) {
             fakeCursor.addRow(new Object[]{"", 0});
         }
-        when(fakeContentProviderClient.query(StreamContract.Streams.CONTENT_URI,
+        when(fakeContentProviderClient.query(StreamSummary.CONTENT_URI,
                 new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                         StreamContract.Streams.STREAM_VERSION}, "", new String[]{}, null))
                 .thenReturn(fakeCursor);
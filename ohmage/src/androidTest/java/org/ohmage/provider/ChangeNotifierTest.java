@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the {@link ChangeNotifier}
+ */
+public class ChangeNotifierTest extends AndroidTestCase {
+
+    private static final Uri fakeUri = Uri.parse("content://test/points");
+
+    private static final Uri fakeOtherUri = Uri.parse("content://test/summary");
+
+    private ContentResolver fakeResolver;
+
+    private ChangeNotifier notifier;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        fakeResolver = mock(ContentResolver.class);
+        notifier = new ChangeNotifier(fakeResolver, new Handler(Looper.getMainLooper()), 200);
+    }
+
+    public void testNotifyChange_firstChange_notifiesImmediately() {
+        notifier.notifyChange(fakeUri);
+
+        verify(fakeResolver).notifyChange(fakeUri, null, false);
+    }
+
+    public void testNotifyChange_manyChangesInDelay_notifiesTwice() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            notifier.notifyChange(fakeUri);
+        }
+
+        verify(fakeResolver, timeout(1000).times(2)).notifyChange(fakeUri, null, false);
+        Thread.sleep(400);
+        verify(fakeResolver, times(2)).notifyChange(fakeUri, null, false);
+    }
+
+    public void testNotifyChange_differentUris_notifiesEach() {
+        notifier.notifyChange(fakeUri);
+        notifier.notifyChange(fakeOtherUri);
+
+        verify(fakeResolver).notifyChange(fakeUri, null, false);
+        verify(fakeResolver).notifyChange(fakeOtherUri, null, false);
+    }
+
+    public void testEndBatch_changesInBatch_notifiesOnceAtEnd() {
+        notifier.beginBatch();
+        notifier.notifyChange(fakeUri);
+        notifier.notifyChange(fakeUri);
+        verify(fakeResolver, never()).notifyChange(any(Uri.class), any(ContentObserver.class),
+                anyBoolean());
+
+        notifier.endBatch();
+
+        verify(fakeResolver, times(1)).notifyChange(fakeUri, null, false);
+    }
+
+    public void testCancelBatch_changesInBatch_neverNotifies() {
+        notifier.beginBatch();
+        notifier.notifyChange(fakeUri);
+
+        notifier.cancelBatch();
+        notifier.endBatch();
+
+        verify(fakeResolver, never()).notifyChange(any(Uri.class), any(ContentObserver.class),
+                anyBoolean());
+    }
+}
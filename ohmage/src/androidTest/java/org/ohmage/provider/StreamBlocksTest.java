@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract.Streams;
+
+/**
+ * Tests {@link StreamBlocks}
+ */
+public class StreamBlocksTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testExpand_withSelection_onlyExpandsThatStream() {
+        StreamBlocks.insert(db, "user", points("a", 3));
+        StreamBlocks.insert(db, "user", points("b", 2));
+
+        int blocks = StreamBlocks.expand(db, Streams.STREAM_ID + "=?", new String[]{"a"}, 0);
+
+        assertEquals(1, blocks);
+        assertEquals(3, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, Tables.StreamBlocks));
+    }
+
+    public void testExpand_corruptBlock_movesItAsideAndExpandsTheRest() {
+        StreamBlocks.insert(db, "user", points("a", 3));
+        ContentValues corrupt = new ContentValues();
+        corrupt.put(Streams.STREAM_ID, "a");
+        corrupt.put(Streams.STREAM_VERSION, 1);
+        corrupt.put(Streams.USERNAME, "user");
+        corrupt.put(StreamBlocks.POINT_COUNT, 2);
+        corrupt.put(StreamBlocks.POINTS, new byte[]{1, 2, 3});
+        db.insert(Tables.StreamBlocks, BaseColumns._ID, corrupt);
+        StreamBlocks.insert(db, "user", points("a", 2));
+
+        int blocks = StreamBlocks.expand(db, null, null, 0);
+
+        assertEquals(3, blocks);
+        assertEquals(5, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamBlocks));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, Tables.StreamBlocksCorrupt));
+    }
+
+    public void testExpand_withLimit_expandsOldestBlocks() {
+        StreamBlocks.insert(db, "user", points("a", 3));
+        StreamBlocks.insert(db, "user", points("a", 2));
+
+        StreamBlocks.expand(db, null, null, 1);
+
+        assertEquals(3, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testExpand_moreBlocksThanAPage_expandsEveryBlock() {
+        for (int i = 0; i < 40; i++) {
+            StreamBlocks.insert(db, "user", points("a", 2));
+        }
+
+        int blocks = StreamBlocks.expand(db, null, null, 0);
+
+        assertEquals(40, blocks);
+        assertEquals(80, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamBlocks));
+    }
+
+    private static ContentValues[] points(String streamId, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Streams.STREAM_ID, streamId);
+            values[i].put(Streams.STREAM_VERSION, 1);
+            values[i].put(Streams.STREAM_METADATA, "{}");
+            values[i].put(Streams.STREAM_DATA, "{\"i\":" + i + "}");
+        }
+        return values;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.ohmage.helper.IdSelectionBuilder;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Benchmarks for reading and writing points in the stream_data table. Each benchmark logs how
+ * long it took so different approaches can be compared on a device. They are large tests so they
+ * can be left out of a normal run with {@code -e size small} or run alone with
+ * {@code -e size large}.
+ */
+@LargeTest
+public class StreamDataBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "StreamDataBenchmark";
+
+    private static final int POINTS = 100000;
+
+    private static final int[] INSERT_COUNTS = new int[]{1000, 10000, 100000};
+
+    private static final String CONTENTION_DB = "benchmark.db";
+
+    private static final int CONTENTION_POINTS = 20000;
+
+    private static final String STREAM_SELECTION = StreamContract.Streams.USERNAME + "=? AND "
+                                                   + StreamContract.Streams.STREAM_ID + "=? AND "
+                                                   + StreamContract.Streams.STREAM_VERSION + "=?";
+
+    private static final String[] STREAM_ARGS = new String[]{"user", "stream0", "1"};
+
+    private SQLiteDatabase db;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testDelete_orExpressions() {
+        List<Long> ids = insertInterleavedPoints(POINTS);
+
+        long start = SystemClock.elapsedRealtime();
+        StringBuilder deleteString = new StringBuilder();
+        int batch = 0;
+        for (Long id : ids) {
+            if (deleteString.length() != 0)
+                deleteString.append(" OR ");
+            deleteString.append(BaseColumns._ID + "=" + id);
+            batch++;
+            if ((batch % (1000 - 2) == 0) || batch == ids.size()) {
+                db.delete(Tables.StreamData, deleteString.toString(), null);
+                deleteString = new StringBuilder();
+            }
+        }
+        log("delete with OR expressions", start);
+
+        assertEquals(POINTS / 2, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testDelete_idSelectionsInTransaction() {
+        List<Long> ids = insertInterleavedPoints(POINTS);
+
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            for (String selection : IdSelectionBuilder.build(BaseColumns._ID, ids)) {
+                db.delete(Tables.StreamData, selection, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        log("delete with id selections", start);
+
+        assertEquals(POINTS / 2, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testDelete_idSelectionsContiguous() {
+        List<Long> ids = insertContiguousPoints(POINTS);
+
+        long start = SystemClock.elapsedRealtime();
+        List<String> selections = IdSelectionBuilder.build(BaseColumns._ID, ids);
+        db.beginTransaction();
+        try {
+            for (String selection : selections) {
+                db.delete(Tables.StreamData, selection, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        log("delete with contiguous id selections", start);
+
+        assertEquals(1, selections.size());
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testDelete_streamRange() {
+        List<Long> ids = insertInterleavedPoints(POINTS);
+
+        long start = SystemClock.elapsedRealtime();
+        db.delete(Tables.StreamData, STREAM_SELECTION + " AND " + BaseColumns._ID
+                                     + " BETWEEN ? AND ?", new String[]{STREAM_ARGS[0],
+                STREAM_ARGS[1], STREAM_ARGS[2], String.valueOf(ids.get(0)),
+                String.valueOf(ids.get(ids.size() - 1))});
+        log("delete with stream range", start);
+
+        assertEquals(POINTS / 2, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testInsert_contentValues() {
+        for (int count : INSERT_COUNTS) {
+            ContentValues[] points = points(count);
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                for (ContentValues v : points) {
+                    v.put(StreamContract.Streams.USERNAME, STREAM_ARGS[0]);
+                    db.insert(Tables.StreamData, BaseColumns._ID, v);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            logRate("insert " + count + " with content values", count, start);
+
+            assertEquals(count, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+            db.delete(Tables.StreamData, null, null);
+        }
+    }
+
+    public void testInsert_compiledStatement() {
+        for (int count : INSERT_COUNTS) {
+            ContentValues[] points = points(count);
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            StreamDataInserter inserter = new StreamDataInserter(db);
+            try {
+                for (ContentValues v : points) {
+                    inserter.insert(STREAM_ARGS[0], v);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                inserter.close();
+                db.endTransaction();
+            }
+            logRate("insert " + count + " with compiled statement", count, start);
+
+            assertEquals(count, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+            db.delete(Tables.StreamData, null, null);
+        }
+    }
+
+    public void testContention_rollbackJournal() throws Exception {
+        contention("rollback journal", false);
+    }
+
+    public void testContention_writeAheadLog() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+            return;
+        contention("write ahead log", true);
+    }
+
+    /**
+     * Counts how many reads can be done on one thread while another thread inserts points in
+     * small transactions. Uses a file since an in memory db has no journal.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void contention(String name, boolean writeAheadLogging) throws Exception {
+        getContext().deleteDatabase(CONTENTION_DB);
+        final SQLiteDatabase fileDb = getContext().openOrCreateDatabase(CONTENTION_DB,
+                Context.MODE_PRIVATE, null);
+        try {
+            if (writeAheadLogging)
+                fileDb.enableWriteAheadLogging();
+            new OhmageDbHelper(getContext()).onCreate(fileDb);
+
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            Thread writer = new Thread() {
+                @Override public void run() {
+                    ContentValues[] points = points(CONTENTION_POINTS);
+                    StreamDataInserter inserter = new StreamDataInserter(fileDb);
+                    try {
+                        for (int i = 0; i < points.length; i += 100) {
+                            fileDb.beginTransaction();
+                            try {
+                                for (int j = i; j < i + 100; j++) {
+                                    inserter.insert(STREAM_ARGS[0], points[j]);
+                                }
+                                fileDb.setTransactionSuccessful();
+                            } finally {
+                                fileDb.endTransaction();
+                            }
+                        }
+                    } finally {
+                        inserter.close();
+                        writing.set(false);
+                    }
+                }
+            };
+
+            long start = SystemClock.elapsedRealtime();
+            writer.start();
+            int reads = 0;
+            long maxRead = 0;
+            while (writing.get()) {
+                long readStart = SystemClock.elapsedRealtime();
+                DatabaseUtils.queryNumEntries(fileDb, Tables.StreamSummary);
+                maxRead = Math.max(maxRead, SystemClock.elapsedRealtime() - readStart);
+                reads++;
+            }
+            writer.join();
+            assertTrue("No reads finished while points were written", reads > 0);
+            log("contention with " + name + ": " + reads + " reads, longest read " + maxRead
+                + "ms", start);
+
+            assertEquals(CONTENTION_POINTS, DatabaseUtils.queryNumEntries(fileDb,
+                    Tables.StreamData));
+        } finally {
+            fileDb.close();
+            getContext().deleteDatabase(CONTENTION_DB);
+        }
+    }
+
+    private static ContentValues[] points(int count) {
+        ContentValues[] points = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = new ContentValues();
+            points[i].put(StreamContract.Streams.STREAM_ID, STREAM_ARGS[1]);
+            points[i].put(StreamContract.Streams.STREAM_VERSION, 1);
+            points[i].put(StreamContract.Streams.STREAM_METADATA,
+                    "{\"id\":\"" + i + "\",\"timestamp\":\"0\"}");
+            points[i].put(StreamContract.Streams.STREAM_DATA, "{\"x\":1,\"y\":2,\"z\":3}");
+        }
+        return points;
+    }
+
+    /**
+     * Inserts points for one stream so their ids are consecutive
+     *
+     * @param count the number of points
+     * @return the ids of the points
+     */
+    private List<Long> insertContiguousPoints(int count) {
+        List<Long> ids = new ArrayList<Long>(count);
+        ContentValues[] points = points(count);
+
+        db.beginTransaction();
+        try {
+            for (ContentValues v : points) {
+                v.put(StreamContract.Streams.USERNAME, STREAM_ARGS[0]);
+                ids.add(db.insert(Tables.StreamData, BaseColumns._ID, v));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return ids;
+    }
+
+    /**
+     * Inserts points for two streams so the ids of each stream are not consecutive
+     *
+     * @param count the total number of points
+     * @return the ids of the points for the first stream
+     */
+    private List<Long> insertInterleavedPoints(int count) {
+        List<Long> ids = new ArrayList<Long>(count / 2);
+        ContentValues values = new ContentValues();
+        values.put(StreamContract.Streams.USERNAME, STREAM_ARGS[0]);
+        values.put(StreamContract.Streams.STREAM_VERSION, 1);
+        values.put(StreamContract.Streams.STREAM_METADATA, "{\"id\":\"id\",\"timestamp\":\"0\"}");
+        values.put(StreamContract.Streams.STREAM_DATA, "{\"x\":1,\"y\":2,\"z\":3}");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                values.put(StreamContract.Streams.STREAM_ID, "stream" + (i % 2));
+                long id = db.insert(Tables.StreamData, BaseColumns._ID, values);
+                if (i % 2 == 0)
+                    ids.add(id);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return ids;
+    }
+
+    private void log(String name, long start) {
+        Log.i(TAG, name + ": " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    private void logRate(String name, int rows, long start) {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, name + ": " + elapsed + "ms, " + (rows * 1000L / elapsed) + " rows/s");
+    }
+}
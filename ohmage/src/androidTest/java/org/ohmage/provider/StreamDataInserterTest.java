@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract.Streams;
+
+/**
+ * Tests the {@link StreamDataInserter}
+ */
+public class StreamDataInserterTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+
+    private StreamDataInserter inserter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+        inserter = new StreamDataInserter(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        inserter.close();
+        db.close();
+        super.tearDown();
+    }
+
+    public void testInsert_validPoint_insertsRow() {
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_ID, "stream");
+        values.put(Streams.STREAM_VERSION, 2);
+        values.put(Streams.STREAM_METADATA, "{\"id\":\"1\"}");
+        values.put(Streams.STREAM_DATA, "{}");
+
+        long id = inserter.insert("user", values);
+
+        Cursor c = db.query(Tables.StreamData, new String[]{Streams.USERNAME, Streams.STREAM_ID,
+                Streams.STREAM_VERSION, Streams.STREAM_METADATA, Streams.STREAM_DATA},
+                "_id=?", new String[]{String.valueOf(id)}, null, null, null);
+        assertTrue(c.moveToFirst());
+        assertEquals("user", c.getString(0));
+        assertEquals("stream", c.getString(1));
+        assertEquals(2, c.getInt(2));
+        assertEquals("{\"id\":\"1\"}", c.getString(3));
+        assertEquals("{}", c.getString(4));
+        c.close();
+    }
+
+    public void testInsert_missingStreamId_skipsPoint() {
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_VERSION, 2);
+
+        long id = inserter.insert("user", values);
+
+        assertEquals(-1, id);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+}
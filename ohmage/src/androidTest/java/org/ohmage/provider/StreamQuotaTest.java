@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider.StreamShed;
+import org.ohmage.provider.StreamQuota.EvictionPolicy;
+import org.ohmage.streams.StreamContract.Streams;
+
+/**
+ * Tests the {@link StreamQuota}
+ */
+public class StreamQuotaTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testEnforce_underQuota_acceptsAllPoints() {
+        StreamQuota quota = new StreamQuota(10, 0, EvictionPolicy.DROP_OLDEST);
+
+        ContentValues[] accepted = quota.enforce(db, "user", points(5));
+
+        assertEquals(5, accepted.length);
+    }
+
+    public void testEnforce_dropOldest_deletesOldestPoints() {
+        insert(8);
+        StreamQuota quota = new StreamQuota(10, 0, EvictionPolicy.DROP_OLDEST);
+
+        ContentValues[] accepted = quota.enforce(db, "user", points(5));
+
+        assertEquals(5, accepted.length);
+        assertEquals(5, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+        assertEquals(4, DatabaseUtils.longForQuery(db,
+                "SELECT min(_id) FROM " + Tables.StreamData, null));
+        assertEquals(3, shedCount());
+    }
+
+    public void testEnforce_downsample_deletesEveryOtherOldPoint() {
+        insert(8);
+        StreamQuota quota = new StreamQuota(10, 0, EvictionPolicy.DOWNSAMPLE);
+
+        quota.enforce(db, "user", points(4));
+
+        assertEquals(6, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, Tables.StreamData, "_id=1"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamData, "_id=2"));
+        assertEquals(2, shedCount());
+    }
+
+    public void testEnforce_reject_dropsNewPoints() {
+        insert(8);
+        StreamQuota quota = new StreamQuota(10, 0, EvictionPolicy.REJECT);
+
+        ContentValues[] accepted = quota.enforce(db, "user", points(5));
+
+        assertEquals(2, accepted.length);
+        assertEquals(8, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+        assertEquals(3, shedCount());
+    }
+
+    public void testEnforce_totalQuota_evictsAcrossStreams() {
+        insert(8);
+        StreamQuota quota = new StreamQuota(0, 10, EvictionPolicy.DROP_OLDEST);
+
+        ContentValues[] accepted = quota.enforce(db, "other", points(5));
+
+        assertEquals(5, accepted.length);
+        assertEquals(5, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    private void insert(int count) {
+        StreamDataInserter inserter = new StreamDataInserter(db);
+        for (ContentValues v : points(count)) {
+            inserter.insert("user", v);
+        }
+        inserter.close();
+    }
+
+    private long shedCount() {
+        return DatabaseUtils.longForQuery(db, "SELECT " + StreamShed.SHED_COUNT + " FROM "
+                                              + Tables.StreamShed, null);
+    }
+
+    private static ContentValues[] points(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Streams.STREAM_ID, "stream");
+            values[i].put(Streams.STREAM_VERSION, 1);
+            values[i].put(Streams.STREAM_DATA, "{}");
+        }
+        return values;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link StreamWriteQueue}
+ */
+public class StreamWriteQueueTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+
+    private StreamWriteQueue queue;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+        OhmageDbHelper fakeDbHelper = mock(OhmageDbHelper.class);
+        when(fakeDbHelper.getWritableDatabase()).thenReturn(db);
+
+        queue = new StreamWriteQueue(fakeDbHelper) {
+            @Override
+            protected int write(SQLiteDatabase db, String account, ContentValues[] values) {
+                if (account == null)
+                    throw new IllegalStateException();
+                if ("oom".equals(account))
+                    throw new OutOfMemoryError();
+
+                for (ContentValues v : values) {
+                    v.put(StreamContract.Streams.USERNAME, account);
+                    db.insert(Tables.StreamData, BaseColumns._ID, v);
+                }
+                if ("partial".equals(account))
+                    throw new IllegalStateException();
+                return values.length;
+            }
+        };
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testSubmit_writesPointsAndReturnsCount() {
+        int count = queue.submit("user", points(5));
+
+        assertEquals(5, count);
+        assertEquals(5, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testSubmit_writeFails_throwsException() {
+        try {
+            queue.submit(null, points(5));
+            fail("The error from the write should be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testSubmit_writeFailsPartWay_commitsNothing() {
+        try {
+            queue.submit("partial", points(5));
+            fail("The error from the write should be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testSubmit_writeThrowsError_throwsExceptionAndKeepsWriting() {
+        try {
+            queue.submit("oom", points(5));
+            fail("The error from the write should be thrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+
+        assertEquals(5, queue.submit("user", points(5)));
+    }
+
+    public void testSubmit_fromManyThreads_writesAllPoints() throws Exception {
+        final AtomicInteger written = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread() {
+                @Override public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        written.addAndGet(queue.submit("user", points(10)));
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(4000, written.get());
+        assertEquals(4000, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    private static ContentValues[] points(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(StreamContract.Streams.STREAM_ID, "stream");
+            values[i].put(StreamContract.Streams.STREAM_VERSION, 1);
+            values[i].put(StreamContract.Streams.STREAM_DATA, "{}");
+        }
+        return values;
+    }
+}
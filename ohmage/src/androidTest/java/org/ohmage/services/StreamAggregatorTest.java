@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.util.List;
+
+/**
+ * Tests the {@link StreamAggregator}
+ */
+public class StreamAggregatorTest extends AndroidTestCase {
+
+    private static final String fakeStreamId = "stream";
+
+    private StreamAggregator aggregator;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        aggregator = new StreamAggregator(new String[]{fakeStreamId + ":1:60000"});
+    }
+
+    public void testAdd_streamNotAggregated_returnsPoint() {
+        ContentValues point = point(fakeStreamId, 2, "2014-06-01T10:00:00.000Z", 1);
+
+        List<ContentValues> emitted = aggregator.add(point);
+
+        assertEquals(1, emitted.size());
+        assertSame(point, emitted.get(0));
+    }
+
+    public void testAdd_sameWindow_emitsNothing() {
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:00.000Z", 1));
+
+        List<ContentValues> emitted =
+                aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:59.000Z", 2));
+
+        assertTrue(emitted.isEmpty());
+    }
+
+    public void testAdd_windowAfterNext_emitsSummary() {
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:10.000Z", 1));
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:20.000Z", 5));
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:30.000Z", 3));
+
+        List<ContentValues> emitted =
+                aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:02:00.000Z", 8));
+
+        assertEquals(1, emitted.size());
+        assertEquals(fakeStreamId, emitted.get(0).getAsString(Streams.STREAM_ID));
+        JsonObject data = new JsonParser().parse(
+                emitted.get(0).getAsString(Streams.STREAM_DATA)).getAsJsonObject();
+        assertEquals("2014-06-01T10:00:00.000Z", data.get("window_start").getAsString());
+        assertEquals(3, data.get("count").getAsInt());
+        JsonObject value = data.getAsJsonObject("value");
+        assertEquals(1.0, value.get("min").getAsDouble());
+        assertEquals(5.0, value.get("max").getAsDouble());
+        assertEquals(3.0, value.get("mean").getAsDouble());
+    }
+
+    public void testAdd_nextWindow_keepsWindowOpenForLatePoints() {
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:10.000Z", 1));
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:01:10.000Z", 2));
+
+        List<ContentValues> emitted =
+                aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:50.000Z", 3));
+
+        assertTrue(emitted.isEmpty());
+        List<ContentValues> flushed = aggregator.flush();
+        assertEquals(2, flushed.size());
+        assertEquals(2, data(flushed.get(0)).get("count").getAsInt());
+        assertEquals(1, data(flushed.get(1)).get("count").getAsInt());
+    }
+
+    public void testAdd_pointForEmittedWindow_isDroppedAndCounted() {
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:10.000Z", 1));
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:02:00.000Z", 2));
+
+        List<ContentValues> emitted =
+                aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:20.000Z", 3));
+
+        assertTrue(emitted.isEmpty());
+        assertEquals(1, aggregator.getDroppedCount());
+    }
+
+    public void testFlushIdle_idleWindow_emitsSummary() {
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:10.000Z", 1));
+
+        assertTrue(aggregator.flushIdle(System.currentTimeMillis(), 60000).isEmpty());
+        assertEquals(1, aggregator.flushIdle(System.currentTimeMillis() + 60000, 60000).size());
+    }
+
+    public void testFlush_openWindow_emitsSummary() {
+        aggregator.add(point(fakeStreamId, 1, "2014-06-01T10:00:10.000Z", 1));
+
+        List<ContentValues> emitted = aggregator.flush();
+
+        assertEquals(1, emitted.size());
+        assertTrue(aggregator.flush().isEmpty());
+    }
+
+    private static JsonObject data(ContentValues values) {
+        return new JsonParser().parse(values.getAsString(Streams.STREAM_DATA)).getAsJsonObject();
+    }
+
+    private static ContentValues point(String streamId, int version, String timestamp,
+            int value) {
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_ID, streamId);
+        values.put(Streams.STREAM_VERSION, version);
+        values.put(Streams.STREAM_METADATA, "{\"timestamp\":\"" + timestamp + "\"}");
+        values.put(Streams.STREAM_DATA, "{\"value\":" + value + ",\"label\":\"x\"}");
+        return values;
+    }
+}
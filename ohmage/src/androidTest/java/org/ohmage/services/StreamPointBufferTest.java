@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import org.mockito.ArgumentCaptor;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Tests the {@link StreamPointBuffer}
+ */
+public class StreamPointBufferTest extends AndroidTestCase {
+
+    private static final Uri fakeUri = Uri.parse("content://fake/streams");
+
+    private ContentProviderClient fakeProvider;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        fakeProvider = mock(ContentProviderClient.class);
+    }
+
+    public void testPut_fewerThanFlushSize_doesNotInsertBeforeDelay() throws Exception {
+        StreamPointBuffer buffer = new StreamPointBuffer(fakeProvider, fakeUri, 10, 5, 60000);
+
+        buffer.put(new ContentValues());
+        Thread.sleep(100);
+
+        verifyZeroInteractions(fakeProvider);
+        buffer.close();
+    }
+
+    public void testPut_fewerThanFlushSize_insertsAfterDelay() throws Exception {
+        StreamPointBuffer buffer = new StreamPointBuffer(fakeProvider, fakeUri, 10, 5, 50);
+
+        buffer.put(new ContentValues());
+
+        verify(fakeProvider, timeout(1000)).bulkInsert(eq(fakeUri), any(ContentValues[].class));
+        buffer.close();
+    }
+
+    public void testPut_flushSizePoints_insertsBatch() throws Exception {
+        StreamPointBuffer buffer = new StreamPointBuffer(fakeProvider, fakeUri, 10, 3, 60000);
+
+        for (int i = 0; i < 3; i++) {
+            buffer.put(new ContentValues());
+        }
+
+        ArgumentCaptor<ContentValues[]> captor = ArgumentCaptor.forClass(ContentValues[].class);
+        verify(fakeProvider, timeout(1000)).bulkInsert(eq(fakeUri), captor.capture());
+        assertEquals(3, captor.getValue().length);
+        buffer.close();
+    }
+
+    public void testClose_hasPoints_insertsPoints() throws Exception {
+        StreamPointBuffer buffer = new StreamPointBuffer(fakeProvider, fakeUri, 10, 5, 60000);
+        buffer.put(new ContentValues());
+        buffer.put(new ContentValues());
+
+        buffer.close();
+
+        ArgumentCaptor<ContentValues[]> captor = ArgumentCaptor.forClass(ContentValues[].class);
+        verify(fakeProvider, times(1)).bulkInsert(eq(fakeUri), captor.capture());
+        assertEquals(2, captor.getValue().length);
+    }
+
+    public void testPut_moreThanCapacity_insertsAllPoints() throws Exception {
+        StreamPointBuffer buffer = new StreamPointBuffer(fakeProvider, fakeUri, 2, 2, 60000);
+
+        for (int i = 0; i < 10; i++) {
+            buffer.put(new ContentValues());
+        }
+        buffer.close();
+
+        verify(fakeProvider, atLeastOnce()).bulkInsert(eq(fakeUri), any(ContentValues[].class));
+    }
+
+    public void testPut_afterClose_throwsException() throws Exception {
+        StreamPointBuffer buffer = new StreamPointBuffer(fakeProvider, fakeUri, 10, 5, 60000);
+        buffer.close();
+
+        try {
+            buffer.put(new ContentValues());
+            fail("Put should throw after the buffer is closed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests the {@link StreamPointReader}
+ */
+public class StreamPointReaderTest extends AndroidTestCase {
+
+    private static final String fakeStreamId = "stream";
+
+    private static final int fakeStreamVersion = 2;
+
+    public void testNext_noPoints_returnsNull() throws Exception {
+        StreamPointReader reader = reader(new byte[0]);
+
+        assertNull(reader.next());
+    }
+
+    public void testNext_hasPoints_readsEachPoint() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, "{\"id\":\"1\"}");
+        writeString(out, "{\"x\":\"©\"}");
+        writeString(out, null);
+        writeString(out, "{}");
+        StreamPointReader reader = reader(bytes.toByteArray());
+
+        ContentValues first = reader.next();
+        ContentValues second = reader.next();
+
+        assertEquals(fakeStreamId, first.getAsString(Streams.STREAM_ID));
+        assertEquals(fakeStreamVersion, (int) first.getAsInteger(Streams.STREAM_VERSION));
+        assertEquals("{\"id\":\"1\"}", first.getAsString(Streams.STREAM_METADATA));
+        assertEquals("{\"x\":\"©\"}", first.getAsString(Streams.STREAM_DATA));
+        assertNull(second.getAsString(Streams.STREAM_METADATA));
+        assertEquals("{}", second.getAsString(Streams.STREAM_DATA));
+        assertNull(reader.next());
+    }
+
+    public void testNext_pointIsCutOff_throwsException() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, "{}");
+        out.writeInt(10);
+        StreamPointReader reader = reader(bytes.toByteArray());
+
+        try {
+            reader.next();
+            fail("Reading a partial point should throw an exception");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static StreamPointReader reader(byte[] bytes) {
+        return new StreamPointReader(new ByteArrayInputStream(bytes), fakeStreamId,
+                fakeStreamVersion);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link StreamReceiver}
+ */
+public class StreamReceiverTest extends AndroidTestCase {
+
+    private ContentProviderClient fakeProvider;
+
+    private StreamAggregator aggregator;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        fakeProvider = mock(ContentProviderClient.class);
+        aggregator = new StreamAggregator(new String[0]);
+    }
+
+    public void testSave_allPointsSaved_returnsCount() throws Exception {
+        when(fakeProvider.bulkInsert(any(Uri.class), any(ContentValues[].class)))
+                .thenReturn(2, 1);
+
+        int saved = StreamReceiver.save(fakeProvider, aggregator, reader(3), 2);
+
+        assertEquals(3, saved);
+    }
+
+    public void testSave_noAccount_returnsZero() throws Exception {
+        when(fakeProvider.bulkInsert(any(Uri.class), any(ContentValues[].class))).thenReturn(0);
+
+        int saved = StreamReceiver.save(fakeProvider, aggregator, reader(3), 2);
+
+        assertEquals(0, saved);
+    }
+
+    public void testSave_quotaShedsPoints_returnsSavedCount() throws Exception {
+        when(fakeProvider.bulkInsert(any(Uri.class), any(ContentValues[].class)))
+                .thenReturn(1, 0);
+
+        int saved = StreamReceiver.save(fakeProvider, aggregator, reader(3), 2);
+
+        assertEquals(1, saved);
+    }
+
+    private static StreamPointReader reader(int points) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < points; i++) {
+            out.writeInt(2);
+            out.write("{}".getBytes("UTF-8"));
+            out.writeInt(2);
+            out.write("{}".getBytes("UTF-8"));
+        }
+        return new StreamPointReader(new ByteArrayInputStream(bytes.toByteArray()), "stream", 1);
+    }
+}
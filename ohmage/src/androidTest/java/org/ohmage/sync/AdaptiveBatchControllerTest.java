@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import org.ohmage.models.Stream;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+import retrofit.client.Response;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link AdaptiveBatchController}
+ */
+public class AdaptiveBatchControllerTest extends AndroidTestCase {
+
+    private static final Stream fakeStream = new Stream("stream", 1);
+
+    private SharedPreferences prefs;
+
+    private AdaptiveBatchController controller;
+
+    private StreamWriterOutput fakeWriter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        prefs = getContext().getSharedPreferences("stream_batch_sizes", Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        controller = new AdaptiveBatchController(getContext());
+        fakeWriter = new StreamWriterOutput(null, 1000, 100);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        prefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testGetBatchSize_noUploads_returnsDefaults() {
+        assertEquals(StreamWriterOutput.BATCH_MAX_SIZE_BYTES, controller.getBatchSize(fakeStream));
+        assertEquals(StreamWriterOutput.BATCH_MAX_COUNT, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnSuccess_fullBatchUploadedQuickly_growsBatch() {
+        StreamWriterOutput writer = fullBatchWriter(1000, 100);
+
+        controller.onSuccess(fakeStream, writer, 100);
+
+        assertEquals(AdaptiveBatchController.MIN_SIZE_BYTES, controller.getBatchSize(fakeStream));
+        assertEquals(200, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnSuccess_partialBatchUploadedQuickly_keepsBatchSize() {
+        controller.onSuccess(fakeStream, fakeWriter, 100);
+
+        assertEquals(StreamWriterOutput.BATCH_MAX_SIZE_BYTES, controller.getBatchSize(fakeStream));
+        assertEquals(StreamWriterOutput.BATCH_MAX_COUNT, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnSuccess_slowUpload_shrinksBatch() {
+        StreamWriterOutput writer = new StreamWriterOutput(null, 1024 * 256, 1000);
+
+        controller.onSuccess(fakeStream, writer, 10000);
+
+        assertEquals(1024 * 128, controller.getBatchSize(fakeStream));
+        assertEquals(500, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnSuccess_throughputDropped_keepsBatchSize() {
+        controller.onSuccess(fakeStream, fullBatchWriter(1000, 100), 100);
+        StreamWriterOutput writer = fullBatchWriter(2000, 200);
+
+        controller.onSuccess(fakeStream, writer, 1000);
+
+        assertEquals(200, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnSuccess_recentErrors_keepsBatchSize() {
+        for (int i = 0; i < 3; i++) {
+            controller.onFailure(fakeStream, fakeWriter, networkError());
+        }
+        int count = controller.getBatchCount(fakeStream);
+        StreamWriterOutput writer = fullBatchWriter(1000, 100);
+
+        controller.onSuccess(fakeStream, writer, 100);
+
+        assertEquals(count, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnFailure_singleNetworkError_keepsBatchSize() {
+        controller.onFailure(fakeStream, fakeWriter, networkError());
+
+        assertEquals(StreamWriterOutput.BATCH_MAX_COUNT, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnFailure_repeatedNetworkErrors_shrinksBatchToMinimum() {
+        controller.onFailure(fakeStream, fakeWriter, networkError());
+        controller.onFailure(fakeStream, fakeWriter, networkError());
+
+        assertEquals(AdaptiveBatchController.MIN_SIZE_BYTES, controller.getBatchSize(fakeStream));
+        assertEquals(50, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnFailure_httpError_keepsBatchSize() {
+        controller.onFailure(fakeStream, fakeWriter, RetrofitError.httpError("url",
+                new Response(400, "Bad Request", Collections.<Header>emptyList(), null), null,
+                null));
+
+        assertEquals(StreamWriterOutput.BATCH_MAX_COUNT, controller.getBatchCount(fakeStream));
+    }
+
+    public void testOnFailure_persistsBetweenControllers() {
+        controller.onFailure(fakeStream, fakeWriter, networkError());
+        controller.onFailure(fakeStream, fakeWriter, networkError());
+
+        AdaptiveBatchController other = new AdaptiveBatchController(getContext());
+
+        assertEquals(50, other.getBatchCount(fakeStream));
+    }
+
+    private static RetrofitError networkError() {
+        return RetrofitError.networkError("url", new IOException("timeout"));
+    }
+
+    private StreamWriterOutput fullBatchWriter(long size, int num) {
+        StreamWriterOutput writer = mock(StreamWriterOutput.class);
+        when(writer.getMaxBatchSize()).thenReturn(size);
+        when(writer.getMaxBatchCount()).thenReturn(num);
+        when(writer.getBatchBytes()).thenReturn(size / 2);
+        when(writer.getBatchCount()).thenReturn(num);
+        return writer;
+    }
+}
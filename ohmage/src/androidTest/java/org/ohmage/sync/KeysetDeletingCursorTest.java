@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the keyset paging cursor
+ */
+public class KeysetDeletingCursorTest extends AndroidTestCase {
+
+    private static final int PAGE_SIZE = 3;
+
+    private static final String[] PROJECTION = new String[]{BaseColumns._ID};
+
+    private ContentProviderClient fakeContentProvider;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        fakeContentProvider = mock(ContentProviderClient.class);
+    }
+
+    public void testHasNextPage_pageIsFull_returnsTrue() throws Exception {
+        whenQueryReturnsIds(1, 2, 3);
+
+        KeysetDeletingCursor cursor = query(0);
+
+        assertTrue(cursor.hasNextPage());
+    }
+
+    public void testHasNextPage_pageIsNotFull_returnsFalse() throws Exception {
+        whenQueryReturnsIds(1, 2);
+
+        KeysetDeletingCursor cursor = query(0);
+
+        assertFalse(cursor.hasNextPage());
+    }
+
+    public void testNextPage_afterReadingPage_queriesAfterLastId() throws Exception {
+        whenQueryReturnsIds(4, 7, 9);
+        KeysetDeletingCursor cursor = query(0);
+        while (cursor.moveToNext()) ;
+
+        cursor.nextPage(fakeContentProvider);
+
+        verify(fakeContentProvider).query(eq(KeysetDeletingCursor.pageUri(Uri.EMPTY, PAGE_SIZE)),
+                eq(PROJECTION), eq("a=? AND " + BaseColumns._ID + ">?"),
+                eq(new String[]{"b", "9"}), eq(BaseColumns._ID));
+    }
+
+    public void testMoveToNext_afterDeletingPoints_readsTheRestOfThePage() throws Exception {
+        whenQueryReturnsIds(1, 2, 3);
+        KeysetDeletingCursor cursor = query(0);
+        cursor.moveToNext();
+        cursor.moveToNext();
+        cursor.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(3, cursor.getLong(0));
+        assertFalse(cursor.moveToNext());
+    }
+
+    private KeysetDeletingCursor query(long afterId) throws Exception {
+        return KeysetDeletingCursor.query(fakeContentProvider, Uri.EMPTY, PROJECTION, "a=?",
+                new String[]{"b"}, afterId, PAGE_SIZE);
+    }
+
+    private void whenQueryReturnsIds(long... ids) throws Exception {
+        MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        for (long id : ids) {
+            cursor.addRow(new Object[]{id});
+        }
+        when(fakeContentProvider.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).thenReturn(cursor);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderOperation;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.ResponseContract.ResponseMedia;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+
+import java.util.List;
+
+/**
+ * Tests the {@link MediaUploadQueue}
+ */
+public class MediaUploadQueueTest extends AndroidTestCase {
+
+    public void testEnqueue_noFiles_createsNoOperations() {
+        List<ContentProviderOperation> operations =
+                MediaUploadQueue.enqueue("survey", 1, new ResponseFiles());
+
+        assertTrue(operations.isEmpty());
+    }
+
+    public void testEnqueue_files_insertsEachFile() {
+        ResponseFiles files = new ResponseFiles();
+        files.put("photo", "/sdcard/photo.jpg");
+        files.put("audio", "/sdcard/audio.3gp");
+
+        List<ContentProviderOperation> operations =
+                MediaUploadQueue.enqueue("survey", 1, files);
+
+        assertEquals(2, operations.size());
+        for (ContentProviderOperation operation : operations) {
+            assertEquals(ResponseMedia.CONTENT_URI.getPath(), operation.getUri().getPath());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import org.ohmage.app.OhmageService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+import retrofit.client.Response;
+import retrofit.mime.TypedOutput;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link MediaUploader}
+ */
+public class MediaUploaderTest extends AndroidTestCase {
+
+    private static final String fakeMediaId = "media";
+
+    private SharedPreferences prefs;
+
+    private OhmageService fakeService;
+
+    private MediaUploader uploader;
+
+    private File file;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        prefs = getContext().getSharedPreferences("media_upload_offsets", Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        fakeService = mock(OhmageService.class);
+        uploader = new MediaUploader(getContext(), fakeService, 4);
+
+        file = new File(getContext().getCacheDir(), "media_upload_test");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("0123456789".getBytes());
+        out.close();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        file.delete();
+        prefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testUpload_serverAcksEachChunk_sendsEveryChunk() throws Exception {
+        ack("bytes 0-3/10", 3);
+        ack("bytes 4-7/10", 7);
+        ack("bytes 8-9/10", 9);
+
+        uploader.upload("survey", 1, fakeMediaId, file);
+
+        verify(fakeService).uploadMediaChunk(eq("survey"), eq(1L), eq(fakeMediaId),
+                eq("bytes 0-3/10"), any(TypedOutput.class));
+        verify(fakeService).uploadMediaChunk(eq("survey"), eq(1L), eq(fakeMediaId),
+                eq("bytes 4-7/10"), any(TypedOutput.class));
+        verify(fakeService).uploadMediaChunk(eq("survey"), eq(1L), eq(fakeMediaId),
+                eq("bytes 8-9/10"), any(TypedOutput.class));
+    }
+
+    public void testUpload_noServerRange_asksServerAndKeepsOffset() throws Exception {
+        when(fakeService.uploadMediaChunk(anyString(), eq(1L), anyString(), anyString(),
+                any(TypedOutput.class))).thenReturn(response());
+
+        try {
+            uploader.upload("survey", 1, fakeMediaId, file);
+            fail("An unacknowledged chunk should be an error");
+        } catch (RetrofitError e) {
+            // Expected
+        }
+
+        verify(fakeService).uploadMediaChunk(eq("survey"), eq(1L), eq(fakeMediaId),
+                eq("bytes */10"), any(TypedOutput.class));
+        assertEquals(0, prefs.getLong(fakeMediaId, 0));
+    }
+
+    public void testUpload_noServerRange_resumesFromStatusQuery() throws Exception {
+        when(fakeService.uploadMediaChunk(anyString(), eq(1L), anyString(), anyString(),
+                any(TypedOutput.class))).thenReturn(response());
+        ack("bytes */10", 7);
+
+        uploader.upload("survey", 1, fakeMediaId, file);
+
+        verify(fakeService, never()).uploadMediaChunk(anyString(), eq(1L), anyString(),
+                eq("bytes 4-7/10"), any(TypedOutput.class));
+        verify(fakeService).uploadMediaChunk(eq("survey"), eq(1L), eq(fakeMediaId),
+                eq("bytes 8-9/10"), any(TypedOutput.class));
+    }
+
+    public void testUpload_lastChunkAcceptedWithoutRange_finishes() throws Exception {
+        prefs.edit().putLong(fakeMediaId, 8).commit();
+        when(fakeService.uploadMediaChunk(anyString(), eq(1L), anyString(), anyString(),
+                any(TypedOutput.class))).thenReturn(response());
+
+        uploader.upload("survey", 1, fakeMediaId, file);
+
+        verify(fakeService, never()).uploadMediaChunk(anyString(), eq(1L), anyString(),
+                eq("bytes */10"), any(TypedOutput.class));
+        assertEquals(10, prefs.getLong(fakeMediaId, 0));
+    }
+
+    public void testUpload_failedChunk_resumesFromAcknowledgedOffset() throws Exception {
+        ack("bytes 0-3/10", 3);
+        when(fakeService.uploadMediaChunk(anyString(), eq(1L), anyString(), eq("bytes 4-7/10"),
+                any(TypedOutput.class)))
+                .thenThrow(RetrofitError.networkError("url", new IOException()));
+        try {
+            uploader.upload("survey", 1, fakeMediaId, file);
+            fail("The chunk error should be thrown");
+        } catch (RetrofitError e) {
+            // Expected
+        }
+        fakeService = mock(OhmageService.class);
+        uploader = new MediaUploader(getContext(), fakeService, 4);
+        ack("bytes 4-7/10", 7);
+        ack("bytes 8-9/10", 9);
+
+        uploader.upload("survey", 1, fakeMediaId, file);
+
+        verify(fakeService, never()).uploadMediaChunk(anyString(), eq(1L), anyString(),
+                eq("bytes 0-3/10"), any(TypedOutput.class));
+        verify(fakeService).uploadMediaChunk(eq("survey"), eq(1L), eq(fakeMediaId),
+                eq("bytes 4-7/10"), any(TypedOutput.class));
+    }
+
+    public void testAckedOffset_rangeHeader_returnsNextByte() {
+        Response response = new Response(200, "OK",
+                Collections.singletonList(new Header("Range", "bytes=0-5")), null);
+
+        assertEquals(6, MediaUploader.ackedOffset(response));
+    }
+
+    public void testAckedOffset_noRangeHeader_returnsUnknown() {
+        assertEquals(-1, MediaUploader.ackedOffset(response()));
+    }
+
+    public void testFileChunk_writeTo_writesRange() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new MediaUploader.FileChunk(file, 4, 3).writeTo(out);
+
+        assertEquals("456", out.toString());
+    }
+
+    private void ack(String range, long last) throws Exception {
+        when(fakeService.uploadMediaChunk(anyString(), eq(1L), anyString(), eq(range),
+                any(TypedOutput.class))).thenReturn(new Response(200, "OK",
+                Collections.singletonList(new Header("Range", "bytes=0-" + last)), null));
+    }
+
+    private static Response response() {
+        return new Response(200, "OK", Collections.<Header>emptyList(), null);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+
+import org.ohmage.app.OhmageService;
+import org.ohmage.sync.ResponseUploadEngine.Upload;
+
+import java.io.IOException;
+import java.util.List;
+
+import retrofit.RetrofitError;
+import retrofit.client.Response;
+import rx.Observable;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link ResponseUploadEngine}
+ */
+public class ResponseUploadEngineTest extends AndroidTestCase {
+
+    private OhmageService fakeService;
+
+    private SyncResult syncResult;
+
+    private ResponseUploadEngine engine;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        fakeService = mock(OhmageService.class);
+        syncResult = new SyncResult();
+        engine = new ResponseUploadEngine(fakeService, syncResult, false, 2, 2);
+    }
+
+    public void testFinish_successfulUploads_returnsUploadedResponses() throws Exception {
+        when(fakeService.uploadResponse(eq("survey"), anyLong(), any(ResponseTypedOutput.class)))
+                .thenReturn(Observable.<Response>just(null));
+
+        for (int i = 0; i < 10; i++) {
+            engine.submit(upload(i));
+        }
+        List<Upload> uploaded = engine.finish();
+
+        assertEquals(10, uploaded.size());
+        assertEquals(10, syncResult.stats.numEntries);
+    }
+
+    public void testFinish_networkError_retriesThenCountsError() throws Exception {
+        when(fakeService.uploadResponse(eq("survey"), anyLong(), any(ResponseTypedOutput.class)))
+                .thenReturn(Observable.<Response>error(
+                        RetrofitError.networkError("url", new IOException())));
+
+        engine.submit(upload(1));
+        List<Upload> uploaded = engine.finish();
+
+        assertTrue(uploaded.isEmpty());
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        verify(fakeService, times(2)).uploadResponse(eq("survey"), anyLong(),
+                any(ResponseTypedOutput.class));
+    }
+
+    public void testFinish_unexpectedError_skipsWithoutRetry() throws Exception {
+        when(fakeService.uploadResponse(eq("survey"), anyLong(), any(ResponseTypedOutput.class)))
+                .thenReturn(Observable.<Response>error(
+                        RetrofitError.unexpectedError("url", new IllegalStateException())));
+
+        engine.submit(upload(1));
+        engine.finish();
+
+        assertEquals(1, syncResult.stats.numSkippedEntries);
+        verify(fakeService, times(1)).uploadResponse(eq("survey"), anyLong(),
+                any(ResponseTypedOutput.class));
+    }
+
+    public void testUpload_metadataWithoutId_getsIdWhichIsKeptForRetries() {
+        Upload upload = upload(1);
+
+        assertTrue(upload.metadata.contains("\"id\""));
+    }
+
+    private static Upload upload(long id) {
+        return new Upload(id, "survey", 1, "{}", "{}", null);
+    }
+}
@@ -262,6 +262,31 @@ public class StreamSyncAdapterTest extends InjectedAndroidTestCase {
         verify(fakeWriter).close();
     }
 
+    public void testOnPerformSyncForStreams_parallelUploads_uploadsEachStreamWithItsOwnWriter()
+            throws Exception {
+        final Stream fakeStream2 = new Stream("fakeStreamId2", fakeStreamVersion);
+        final StreamWriterOutput fakeWriter2 = mock(StreamWriterOutput.class);
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        fakeStreams.add(fakeStream2);
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        when(fakeWriter2.moveToNextBatch()).thenReturn(true, false);
+        whenAccountStillExists();
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams,
+                new StreamSyncAdapter.WriterFactory() {
+                    @Override public StreamWriterOutput create(Stream stream) {
+                        return stream == fakeStream2 ? fakeWriter2 : fakeWriter;
+                    }
+                }, fakeSyncResult, 2);
+
+        verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion, fakeWriter);
+        verify(fakeOhmageService).uploadStreamData(fakeStream2.schemaId, fakeStreamVersion,
+                fakeWriter2);
+        verify(fakeWriter).close();
+        verify(fakeWriter2).close();
+    }
+
     public void whenAccountStillExists() {
         when(fakeAccountManager.getUserData(fakeAccount, Authenticator.USER_ID))
                 .thenReturn(fakeUserId);
@@ -17,8 +17,10 @@
 package org.ohmage.sync;
 
 import android.content.ContentProviderClient;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.net.Uri;
 import android.test.AndroidTestCase;
 
 import com.google.gson.FieldNamingPolicy;
@@ -30,15 +32,21 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.ohmage.models.Stream;
 import org.ohmage.models.Streams;
+import org.ohmage.provider.StreamContentProvider;
 import org.ohmage.streams.StreamContract;
 import org.ohmage.streams.StreamPointBuilder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -78,27 +86,47 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         mStreamWriterOutput = new StreamWriterOutput(fakeContentProviderClient);
     }
 
-    public void testQuery_withNameAndStream_QueriesForStreamsWithUserForStream() throws Exception {
+    public void testPageSize_largeBatches_holdsAWholeBatch() {
+        assertEquals(5000, new StreamWriterOutput(null, 1024, 5000).pageSize());
+    }
+
+    public void testPageSize_isWholeNumberOfBatches() {
+        assertEquals(2100, new StreamWriterOutput(null, 1024, 300).pageSize());
+    }
+
+    public void testQuery_withNameAndStream_QueriesForFirstPageOfStreamsWithUserForStream()
+            throws Exception {
         String fakeName = "fakeName";
         Stream fakeStream = new Stream("fakeId", 0);
+        Uri streamUri = StreamContract.Streams.CONTENT_URI.buildUpon()
+                .appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_STREAM_ID,
+                        fakeStream.schemaId)
+                .appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_STREAM_VERSION,
+                        String.valueOf(fakeStream.schemaVersion)).build();
+        Uri pageUri = KeysetDeletingCursor.pageUri(streamUri,
+                KeysetDeletingCursor.DEFAULT_PAGE_SIZE);
         when(fakeContentProviderClient
-                .query(eq(StreamContract.Streams.CONTENT_URI), any(String[].class),
+                .query(eq(pageUri), any(String[].class),
                         eq(StreamContract.Streams.USERNAME + "=? AND " +
                            StreamContract.Streams.STREAM_ID + "=? AND " +
-                           StreamContract.Streams.STREAM_VERSION + "=?"),
+                           StreamContract.Streams.STREAM_VERSION + "=? AND " +
+                           StreamContract.Streams._ID + ">?"),
                         eq(new String[]{fakeName, fakeStream.schemaId,
-                                String.valueOf(fakeStream.schemaVersion)}), any(String.class)))
+                                String.valueOf(fakeStream.schemaVersion), "0"}),
+                        eq(StreamContract.Streams._ID)))
                 .thenReturn(new MatrixCursor(PROJECTION));
 
         mStreamWriterOutput.query(fakeName, fakeStream);
 
         verify(fakeContentProviderClient)
-                .query(eq(StreamContract.Streams.CONTENT_URI), any(String[].class),
+                .query(eq(pageUri), any(String[].class),
                         eq(StreamContract.Streams.USERNAME + "=? AND " +
                            StreamContract.Streams.STREAM_ID + "=? AND " +
-                           StreamContract.Streams.STREAM_VERSION + "=?"),
+                           StreamContract.Streams.STREAM_VERSION + "=? AND " +
+                           StreamContract.Streams._ID + ">?"),
                         eq(new String[]{fakeName, fakeStream.schemaId,
-                                String.valueOf(fakeStream.schemaVersion)}), any(String.class));
+                                String.valueOf(fakeStream.schemaVersion), "0"}),
+                        eq(StreamContract.Streams._ID));
     }
 
     public void testSetCursor_hasCursor_closesOldCursor() {
@@ -202,16 +230,17 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         Cursor fakeCursor = mock(Cursor.class);
         when(fakeCursor.moveToNext()).thenReturn(true);
         final int numPoints = 10;
-        when(fakeCursor.getString(anyInt())).then(new Answer<String>() {
-            @Override public String answer(InvocationOnMock invocationOnMock) throws Throwable {
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
                 int size = (int) StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2 / numPoints;
                 StringBuilder sb = new StringBuilder(size);
                 for (int i = 0; i < size; i++) {
                     sb.append('a');
                 }
-                return sb.toString();
+                copyToBuffer(sb.toString(), invocationOnMock);
+                return null;
             }
-        });
+        }).when(fakeCursor).copyStringToBuffer(anyInt(), any(CharArrayBuffer.class));
         mStreamWriterOutput.setCursor(fakeCursor);
         OutputStream fakeOutputStream = new OutputStream() {
             @Override public void write(int oneByte) throws IOException {
@@ -229,17 +258,18 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         Cursor fakeCursor = mock(Cursor.class);
         when(fakeCursor.moveToNext()).thenReturn(true);
         final int numPoints = 10;
-        when(fakeCursor.getString(anyInt())).then(new Answer<String>() {
-            @Override public String answer(InvocationOnMock invocationOnMock) throws Throwable {
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
                 int size = (int) StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2 / numPoints / 2;
                 // This uses a character which takes up two bytes instead of one
                 StringBuilder sb = new StringBuilder(size);
                 for (int i = 0; i < size; i++) {
                     sb.append('©');
                 }
-                return sb.toString();
+                copyToBuffer(sb.toString(), invocationOnMock);
+                return null;
             }
-        });
+        }).when(fakeCursor).copyStringToBuffer(anyInt(), any(CharArrayBuffer.class));
         mStreamWriterOutput.setCursor(fakeCursor);
         OutputStream fakeOutputStream = new OutputStream() {
             @Override public void write(int oneByte) throws IOException {
@@ -273,6 +303,22 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         assertEquals(fakeMetaData, gson.toJson(pointStream.get("meta_data")));
     }
 
+    public void testWriteTo_hasMultiByteCharacters_writesUtf8Json() throws Exception {
+        String data = "{\"text\":\"\u00a9\u4e2d\ud83d\ude00\"}";
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        fakeCursor.addRow(new Object[]{0, fakeMetaData, data});
+        mStreamWriterOutput.setCursor(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        Object[] streams = gson.fromJson(output.toString("UTF-8"), Object[].class);
+        assertEquals(1, streams.length);
+        LinkedTreeMap pointStream = (LinkedTreeMap) streams[0];
+        assertEquals(data, gson.toJson(pointStream.get("data")));
+    }
+
     public void testWriteTo_hasMultiplePoints_writesPointsJson() throws Exception {
         MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
         StreamPointBuilder builder = new StreamPointBuilder();
@@ -302,6 +348,26 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         }
     }
 
+    public void testWriteTo_compressed_writesGzippedPointsJson() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < 100; i++) {
+            fakeCursor.addRow(new Object[]{i, fakeMetaData, fakeData});
+        }
+        mStreamWriterOutput.setCursor(fakeCursor);
+        mStreamWriterOutput.setCompressed(true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        InputStreamReader reader = new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())), "UTF-8");
+        Object[] streams = gson.fromJson(reader, Object[].class);
+        assertEquals(100, streams.length);
+        assertEquals("gzip", mStreamWriterOutput.contentEncoding());
+        assertEquals(output.size(), mStreamWriterOutput.getBatchBytes());
+    }
+
     public void testWriteTo_beforeMovingToFirstBatch_DoesNotWritePoints() throws Exception {
         mStreamWriterOutput.setCursor(mock(Cursor.class));
         OutputStream fakeOutputStream = mock(OutputStream.class);
@@ -326,4 +392,10 @@ public class StreamWriterOutputTest extends AndroidTestCase {
 
         verifyZeroInteractions(fakeOutputStream);
     }
+
+    private static void copyToBuffer(String value, InvocationOnMock invocationOnMock) {
+        CharArrayBuffer buffer = (CharArrayBuffer) invocationOnMock.getArguments()[1];
+        buffer.data = value.toCharArray();
+        buffer.sizeCopied = buffer.data.length;
+    }
 }
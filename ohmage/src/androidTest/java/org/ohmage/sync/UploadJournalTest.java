@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import org.ohmage.models.Stream;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the {@link UploadJournal}
+ */
+public class UploadJournalTest extends AndroidTestCase {
+
+    private static final Account fakeAccount = new Account("user", "type");
+
+    private static final Stream fakeStream = new Stream("stream", 1);
+
+    private SharedPreferences prefs;
+
+    private UploadJournal journal;
+
+    private StreamWriterOutput fakeWriter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        prefs = getContext().getSharedPreferences("stream_upload_journal", Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        journal = new UploadJournal(getContext());
+        fakeWriter = mock(StreamWriterOutput.class);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        prefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testEncode_idsWithRuns_collapsesRanges() {
+        String ranges = UploadJournal.encode(Arrays.asList(5l, 1l, 2l, 3l, 8l, 10l, 11l));
+
+        assertEquals("1-3,5,8,10-11", ranges);
+    }
+
+    public void testDecode_ranges_returnsIds() {
+        List<Long> ids = UploadJournal.decode("1-3,5,8,10-11");
+
+        assertEquals(Arrays.asList(1l, 2l, 3l, 5l, 8l, 10l, 11l), ids);
+    }
+
+    public void testReplay_recordedBatch_deletesPoints() throws Exception {
+        journal.record(fakeAccount, fakeStream, Arrays.asList(1l, 2l, 3l));
+        journal.record(fakeAccount, fakeStream, Arrays.asList(7l));
+        when(fakeWriter.deleteIds(Arrays.asList(1l, 2l, 3l, 7l))).thenReturn(4);
+
+        int count = journal.replay(fakeAccount, fakeStream, fakeWriter);
+
+        assertEquals(4, count);
+        assertEquals(0, journal.replay(fakeAccount, fakeStream, fakeWriter));
+    }
+
+    public void testReplay_clearedBatch_deletesNothing() throws Exception {
+        journal.record(fakeAccount, fakeStream, Arrays.asList(1l, 2l, 3l));
+        journal.clear(fakeAccount, fakeStream);
+
+        int count = journal.replay(fakeAccount, fakeStream, fakeWriter);
+
+        assertEquals(0, count);
+        verify(fakeWriter, never()).deleteIds(anyCollectionOf(Long.class));
+    }
+}
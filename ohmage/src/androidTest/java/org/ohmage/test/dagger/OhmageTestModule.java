@@ -50,6 +50,8 @@ import org.ohmage.fragments.SurveysFragment;
 import org.ohmage.operators.ContentProviderSaver;
 import org.ohmage.prompts.PromptFragment;
 import org.ohmage.provider.ContentProviderReader;
+import org.ohmage.provider.OhmageContentProvider;
+import org.ohmage.provider.ResponseContentProvider;
 import org.ohmage.provider.StreamContentProvider;
 import org.ohmage.sync.OhmageSyncAdapter;
 import org.ohmage.sync.ResponseSyncAdapter;
@@ -79,6 +81,8 @@ import static org.mockito.Mockito.mock;
                 SignInFragment.class,
                 LogoutTaskFragment.class,
                 StreamContentProvider.class,
+                ResponseContentProvider.class,
+                OhmageContentProvider.class,
                 StreamSyncAdapter.class,
                 OhmageAuthenticator.class,
                 OhmletsSearchFragment.class,
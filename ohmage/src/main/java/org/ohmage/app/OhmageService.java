@@ -38,9 +38,12 @@ import retrofit.client.Response;
 import retrofit.http.Body;
 import retrofit.http.DELETE;
 import retrofit.http.GET;
+import retrofit.http.Header;
 import retrofit.http.POST;
+import retrofit.http.PUT;
 import retrofit.http.Path;
 import retrofit.http.Query;
+import retrofit.mime.TypedOutput;
 import rx.Observable;
 
 /**
@@ -121,6 +124,23 @@ public interface OhmageService {
             @Path("surveyVersion") long surveyVersion, @Body ResponseTypedOutput data)
             throws AuthenticationException;
 
+    @POST("/surveys/{surveyId}/{surveyVersion}/data")
+    Observable<Response> uploadResponse(@Path("surveyId") String surveyId,
+            @Path("surveyVersion") long surveyVersion,
+            @Header("Content-Encoding") String contentEncoding, @Body ResponseTypedOutput data)
+            throws AuthenticationException;
+
+    /**
+     * Uploads part of a media file for a response. The range has the form
+     * {@code bytes first-last/total}. The server replies with a {@code Range: bytes=0-N} header
+     * for the bytes it has received.
+     */
+    @PUT("/surveys/{surveyId}/{surveyVersion}/media/{mediaId}")
+    Response uploadMediaChunk(@Path("surveyId") String surveyId,
+            @Path("surveyVersion") long surveyVersion, @Path("mediaId") String mediaId,
+            @Header("Content-Range") String range, @Body TypedOutput chunk)
+            throws AuthenticationException;
+
     @GET("/streams/{streamId}")
     Observable<Collection<Integer>> getStreamVersions(@Path("streamId") String streamId);
 
@@ -133,6 +153,12 @@ public interface OhmageService {
             @Path("streamVersion") long streamVersion, @Body StreamWriterOutput data)
             throws AuthenticationException;
 
+    @POST("/streams/{streamId}/{streamVersion}/data")
+    Response uploadStreamData(@Path("streamId") String streamId,
+            @Path("streamVersion") long streamVersion,
+            @Header("Content-Encoding") String contentEncoding, @Body StreamWriterOutput data)
+            throws AuthenticationException;
+
     public abstract static class CancelableCallback<T> implements Callback<T> {
 
         private boolean mCancelled;
@@ -19,6 +19,7 @@ package org.ohmage.dagger;
 import android.content.Context;
 
 import org.ohmage.app.Ohmage;
+import org.ohmage.provider.OhmageDbHelper;
 
 import javax.inject.Singleton;
 
@@ -44,4 +45,12 @@ public class AndroidModule {
     @Provides @Singleton @ForApplication Context provideApplicationContext() {
         return application;
     }
-}
\ No newline at end of file
+
+    /**
+     * A single helper for ohmage.db is shared by all the providers so they use the same
+     * connection pool
+     */
+    @Provides @Singleton OhmageDbHelper provideDbHelper(@ForApplication Context context) {
+        return new OhmageDbHelper(context);
+    }
+}
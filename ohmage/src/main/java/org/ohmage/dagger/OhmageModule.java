@@ -66,6 +66,8 @@ import org.ohmage.prompts.BasePrompt;
 import org.ohmage.prompts.Prompt;
 import org.ohmage.prompts.PromptFragment;
 import org.ohmage.provider.ContentProviderReader;
+import org.ohmage.provider.OhmageContentProvider;
+import org.ohmage.provider.ResponseContentProvider;
 import org.ohmage.provider.StreamContentProvider;
 import org.ohmage.reminders.base.TriggerInit;
 import org.ohmage.sync.OhmageSyncAdapter;
@@ -104,6 +106,8 @@ import retrofit.converter.GsonConverter;
                 SignInFragment.class,
                 LogoutTaskFragment.class,
                 StreamContentProvider.class,
+                ResponseContentProvider.class,
+                OhmageContentProvider.class,
                 StreamSyncAdapter.class,
                 OhmageAuthenticator.class,
                 OhmletsSearchFragment.class,
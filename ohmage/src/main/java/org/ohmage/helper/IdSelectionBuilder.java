@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Helper for making selections which match a set of ids. Runs of consecutive ids are collapsed
+ * into {@code BETWEEN} ranges and the remaining ids are matched with {@code IN} lists.
+ */
+public class IdSelectionBuilder {
+
+    /**
+     * The maximum number of terms in a single selection. SQLite has a maximum expression tree
+     * depth of 1000.
+     */
+    public static final int MAX_TERMS = 500;
+
+    /**
+     * Runs of at least this many consecutive ids are turned into a range
+     */
+    private static final int MIN_RANGE = 3;
+
+    /**
+     * Builds the selections which together match all of the ids
+     *
+     * @param column the id column
+     * @param ids    the ids to match
+     * @return a list of selections. Each one has at most {@link #MAX_TERMS} terms
+     */
+    public static List<String> build(String column, Collection<Long> ids) {
+        List<String> selections = new ArrayList<String>();
+        if (ids.isEmpty())
+            return selections;
+
+        long[] sorted = new long[ids.size()];
+        int n = 0;
+        for (Long id : ids) {
+            sorted[n++] = id;
+        }
+        Arrays.sort(sorted);
+
+        StringBuilder ranges = new StringBuilder();
+        StringBuilder in = new StringBuilder();
+        int terms = 0;
+
+        int i = 0;
+        while (i < sorted.length) {
+            int j = i;
+            while (j + 1 < sorted.length && sorted[j + 1] <= sorted[j] + 1) {
+                j++;
+            }
+
+            if (j - i + 1 >= MIN_RANGE) {
+                if (ranges.length() != 0)
+                    ranges.append(" OR ");
+                ranges.append(column).append(" BETWEEN ").append(sorted[i])
+                        .append(" AND ").append(sorted[j]);
+                terms++;
+            } else {
+                for (int k = i; k <= j; k++) {
+                    if (k > i && sorted[k] == sorted[k - 1])
+                        continue;
+                    if (in.length() != 0)
+                        in.append(',');
+                    in.append(sorted[k]);
+                    terms++;
+                }
+            }
+            i = j + 1;
+
+            if (terms >= MAX_TERMS) {
+                selections.add(toSelection(column, ranges, in));
+                ranges.setLength(0);
+                in.setLength(0);
+                terms = 0;
+            }
+        }
+
+        if (terms > 0)
+            selections.add(toSelection(column, ranges, in));
+
+        return selections;
+    }
+
+    private static String toSelection(String column, StringBuilder ranges, StringBuilder in) {
+        if (in.length() == 0)
+            return ranges.toString();
+
+        if (ranges.length() != 0)
+            ranges.append(" OR ");
+        return ranges.append(column).append(" IN (").append(in).append(')').toString();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.helper;
+
+import android.content.ContentValues;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure metadata has an id. The server uses the id to recognize stream points and responses
+ * it already has, so an upload which is sent again after an error doesn't add duplicates. The id
+ * has to be stored with the row before it is first uploaded so every retry sends the same id.
+ */
+public class IdempotencyIds {
+
+    public static final String ID = "id";
+
+    /**
+     * Random bits chosen once per process. Ids only need to be unique, so each id is these bits
+     * plus a counter instead of a {@link UUID#randomUUID()}, which reads {@code SecureRandom} for
+     * every point.
+     */
+    private static final UUID PREFIX = UUID.randomUUID();
+
+    private static final AtomicLong sCounter = new AtomicLong();
+
+    private IdempotencyIds() {
+    }
+
+    /**
+     * Adds a unique id to the metadata if it doesn't already have one. Metadata is only parsed if
+     * it might already have an id, otherwise the id is added to the start of the object.
+     *
+     * @param metadata the metadata json object, or null
+     * @return metadata with an id. Metadata which isn't a json object is returned unchanged.
+     */
+    public static String ensureId(String metadata) {
+        if (metadata == null || metadata.trim().length() == 0)
+            return "{\"" + ID + "\":\"" + newId() + "\"}";
+
+        String trimmed = metadata.trim();
+        if (!trimmed.startsWith("{") || !trimmed.endsWith("}"))
+            return metadata;
+
+        if (!metadata.contains("\"" + ID + "\"")) {
+            String rest = trimmed.substring(1).trim();
+            return "{\"" + ID + "\":\"" + newId() + "\""
+                   + (rest.startsWith("}") ? "" : ",") + rest;
+        }
+
+        JsonElement element;
+        try {
+            element = new JsonParser().parse(metadata);
+        } catch (JsonParseException e) {
+            return metadata;
+        }
+        if (!element.isJsonObject())
+            return metadata;
+
+        JsonObject object = element.getAsJsonObject();
+        if (object.has(ID) && !object.get(ID).isJsonNull())
+            return metadata;
+
+        object.addProperty(ID, newId());
+        return object.toString();
+    }
+
+    /**
+     * @return a new id in the form of a uuid
+     */
+    static String newId() {
+        long low = (PREFIX.getLeastSignificantBits() + sCounter.getAndIncrement())
+                   & 0x3fffffffffffffffL | 0x8000000000000000L;
+        return new UUID(PREFIX.getMostSignificantBits(), low).toString();
+    }
+
+    /**
+     * Makes sure each row has an id in its metadata
+     *
+     * @param values the rows, which are updated in place
+     * @param column the metadata column
+     */
+    public static void ensureIds(ContentValues[] values, String column) {
+        for (ContentValues v : values) {
+            v.put(column, ensureId(v.getAsString(column)));
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.database.Cursor;
 import android.os.RemoteException;
 
 import org.ohmage.helper.SelectParamBuilder;
+import org.ohmage.provider.StreamContentProvider.StreamSummary;
 import org.ohmage.streams.StreamContract;
 
 import java.util.ArrayList;
@@ -90,7 +91,7 @@ public class Streams extends ArrayList<Stream> {
 
         Cursor cursor = null;
         try {
-            cursor = provider.query(StreamContract.Streams.CONTENT_URI,
+            cursor = provider.query(StreamSummary.CONTENT_URI,
                     new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
                             StreamContract.Streams.STREAM_VERSION},
                     select.buildSelection(), select.buildParams(), null);
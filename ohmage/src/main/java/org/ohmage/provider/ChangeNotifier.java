@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces change notifications so observers requery at a bounded rate. Each uri is notified at
+ * most once per delay. A change during the delay is sent once the delay is over, no matter how
+ * many changes happen. Changes made between {@link #beginBatch()} and {@link #endBatch()} on the
+ * same thread are held back and each uri is notified once at the end.
+ */
+public class ChangeNotifier {
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    private final long mDelayMillis;
+
+    /**
+     * The last time each uri was notified
+     */
+    private final Map<Uri, Long> mLastSent = new HashMap<Uri, Long>();
+
+    /**
+     * The uris which will be notified once their delay is over
+     */
+    private final Set<Uri> mPending = new HashSet<Uri>();
+
+    private final ThreadLocal<Set<Uri>> mBatch = new ThreadLocal<Set<Uri>>();
+
+    /**
+     * @param resolver    the resolver to notify
+     * @param handler     the handler used to send delayed notifications
+     * @param delayMillis the shortest time between notifications for a uri
+     */
+    public ChangeNotifier(ContentResolver resolver, Handler handler, long delayMillis) {
+        mResolver = resolver;
+        mHandler = handler;
+        mDelayMillis = delayMillis;
+    }
+
+    /**
+     * Holds back notifications from this thread until {@link #endBatch()} is called
+     */
+    public void beginBatch() {
+        mBatch.set(new LinkedHashSet<Uri>());
+    }
+
+    /**
+     * Sends the notifications which were held back since {@link #beginBatch()}
+     */
+    public void endBatch() {
+        Set<Uri> batch = mBatch.get();
+        mBatch.remove();
+        if (batch != null) {
+            for (Uri uri : batch) {
+                notifyChange(uri);
+            }
+        }
+    }
+
+    /**
+     * Drops the notifications which were held back since {@link #beginBatch()}, for a batch which
+     * was rolled back
+     */
+    public void cancelBatch() {
+        mBatch.remove();
+    }
+
+    public void notifyChange(final Uri uri) {
+        Set<Uri> batch = mBatch.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            if (mPending.contains(uri))
+                return;
+
+            long now = SystemClock.elapsedRealtime();
+            Long last = mLastSent.get(uri);
+            wait = last == null ? 0 : last + mDelayMillis - now;
+            if (wait <= 0) {
+                mLastSent.put(uri, now);
+            } else {
+                mPending.add(uri);
+            }
+        }
+
+        if (wait <= 0) {
+            mResolver.notifyChange(uri, null, false);
+        } else {
+            mHandler.postDelayed(new Runnable() {
+                @Override public void run() {
+                    synchronized (ChangeNotifier.this) {
+                        mPending.remove(uri);
+                        mLastSent.put(uri, SystemClock.elapsedRealtime());
+                    }
+                    mResolver.notifyChange(uri, null, false);
+                }
+            }, wait);
+        }
+    }
+}
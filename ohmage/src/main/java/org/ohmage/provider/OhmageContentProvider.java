@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 
+import org.ohmage.app.Ohmage;
 import org.ohmage.provider.OhmageContract.Ohmlets;
 import org.ohmage.provider.OhmageContract.Streams;
 import org.ohmage.provider.OhmageContract.Surveys;
@@ -31,6 +32,8 @@ import org.ohmage.provider.OhmageDbHelper.Tables;
 import org.ohmage.reminders.base.ReminderContract.Reminders;
 import org.ohmage.sync.OhmageSyncAdapter;
 
+import javax.inject.Inject;
+
 public class OhmageContentProvider extends ContentProvider {
 
     // enum of the URIs we can match using sUriMatcher
@@ -44,7 +47,7 @@ public class OhmageContentProvider extends ContentProvider {
         int REMINDERS = 6;
     }
 
-    private OhmageDbHelper dbHelper;
+    @Inject OhmageDbHelper dbHelper;
 
     private static UriMatcher sUriMatcher;
 
@@ -137,7 +140,7 @@ public class OhmageContentProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        dbHelper = new OhmageDbHelper(getContext());
+        ((Ohmage) getContext().getApplicationContext()).getApplicationGraph().inject(this);
         return true;
     }
 
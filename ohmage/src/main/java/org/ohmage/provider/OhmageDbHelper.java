@@ -16,24 +16,40 @@
 
 package org.ohmage.provider;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
+import org.ohmage.app.R;
 import org.ohmage.models.Ohmlet.PrivacyState;
 import org.ohmage.provider.OhmageContract.Ohmlets;
 import org.ohmage.provider.OhmageContract.Streams;
 import org.ohmage.provider.OhmageContract.Surveys;
+import org.ohmage.provider.ResponseContract.ResponseMedia;
 import org.ohmage.provider.ResponseContract.Responses;
+import org.ohmage.provider.StreamContentProvider.StreamShed;
+import org.ohmage.provider.StreamContentProvider.StreamSummary;
 import org.ohmage.reminders.base.ReminderContract.Reminders;
 import org.ohmage.streams.StreamContract;
+import org.ohmage.sync.MediaUploader;
 
+import java.io.File;
+
+/**
+ * Helper for ohmage.db. There should only be one instance for the process, which is provided by
+ * {@link org.ohmage.dagger.AndroidModule}. With write ahead logging enabled, its connection pool
+ * has one writer and lets readers run alongside it.
+ */
 public class OhmageDbHelper extends SQLiteOpenHelper {
 
     private static final String DB_NAME = "ohmage.db";
 
-    private static final int DB_VERSION = 37;
+    private static final int DB_VERSION = 43;
 
     public static final String SQL_AND = " AND %s='%s'";
 
@@ -42,15 +58,78 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
         static final String Streams = "streams";
         static final String Surveys = "surveys";
         static final String Responses = "responses";
+        static final String ResponseMedia = "response_media";
         static final String StreamData = "stream_data";
+        static final String StreamBlocks = "stream_blocks";
+        static final String StreamBlocksCorrupt = "stream_blocks_corrupt";
+        static final String StreamSummary = "stream_summary";
+        static final String StreamShed = "stream_shed";
     }
 
+    private final Context mContext;
+
+    private final boolean mWriteAheadLogging;
+
+    private final String mSynchronous;
+
+    private final int mPageSize;
+
+    private final int mCacheSize;
+
     public OhmageDbHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        mContext = context.getApplicationContext();
+
+        Resources res = context.getResources();
+        mWriteAheadLogging = res.getBoolean(R.bool.db_write_ahead_logging);
+        mSynchronous = res.getString(R.string.db_synchronous);
+        mPageSize = res.getInteger(R.integer.db_page_size);
+        mCacheSize = res.getInteger(R.integer.db_cache_size);
+    }
+
+    /**
+     * Applies the db profile from the config resources. Only called on Jelly Bean and later.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // The page size can't change once the db is in WAL mode, so it is set first. It only
+        // changes a new db, since onConfigure is called before the tables are created.
+        db.setPageSize(mPageSize);
+        if (mWriteAheadLogging)
+            db.enableWriteAheadLogging();
+        configure(db);
+    }
+
+    /**
+     * Before Jelly Bean there is no {@link #onConfigure(SQLiteDatabase)}, so the profile is
+     * applied when the db is opened instead. The page size is set in
+     * {@link #onCreate(SQLiteDatabase)} since it is too late to change it here.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            if (mWriteAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+                db.enableWriteAheadLogging();
+            configure(db);
+        }
+    }
+
+    private void configure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous=" + mSynchronous);
+        // Pragmas run with execSQL only reach the primary connection, so the extra read
+        // connections used with write ahead logging keep the default cache size
+        db.execSQL("PRAGMA cache_size=" + mCacheSize);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        // Before Jelly Bean this is the only point before the first table is created
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            db.setPageSize(mPageSize);
+
         db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.Ohmlets + " ("
                    + Ohmlets.OHMLET_ID + " TEXT PRIMARY KEY, "
                    + Ohmlets.OHMLET_NAME + " TEXT NOT NULL, "
@@ -88,6 +167,14 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
                    + Responses.RESPONSE_EXTRAS + " TEXT, "
                    + Responses.RESPONSE_DATA + " TEXT);");
 
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.ResponseMedia + " ("
+                   + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                   + ResponseMedia.SURVEY_ID + " TEXT NOT NULL, "
+                   + ResponseMedia.SURVEY_VERSION + " INTEGER NOT NULL, "
+                   + ResponseMedia.MEDIA_ID + " TEXT NOT NULL, "
+                   + ResponseMedia.MEDIA_PATH + " TEXT NOT NULL, "
+                   + ResponseMedia.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0);");
+
         db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamData + " ("
                    + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                    + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
@@ -95,6 +182,105 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
                    + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
                    + StreamContract.Streams.STREAM_METADATA + " TEXT, "
                    + StreamContract.Streams.STREAM_DATA + " TEXT);");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamBlocks + " ("
+                   + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamBlocks.POINT_COUNT + " INTEGER NOT NULL, "
+                   + StreamBlocks.POINTS + " BLOB NOT NULL);");
+
+        // Blocks which couldn't be expanded are kept here so they can be recovered
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamBlocksCorrupt + " ("
+                   + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamBlocks.POINT_COUNT + " INTEGER NOT NULL, "
+                   + StreamBlocks.POINTS + " BLOB NOT NULL);");
+
+        // Index used to list the points for a stream and to page through them by id
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Tables.StreamData + "_stream_idx ON "
+                   + Tables.StreamData + " ("
+                   + StreamContract.Streams.USERNAME + ", "
+                   + StreamContract.Streams.STREAM_ID + ", "
+                   + StreamContract.Streams.STREAM_VERSION + ");");
+
+        // Index used to find the blocks for a stream when it is read
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Tables.StreamBlocks + "_stream_idx ON "
+                   + Tables.StreamBlocks + " ("
+                   + StreamContract.Streams.USERNAME + ", "
+                   + StreamContract.Streams.STREAM_ID + ", "
+                   + StreamContract.Streams.STREAM_VERSION + ");");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamSummary + " ("
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + StreamSummary.POINT_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                   + "PRIMARY KEY (" + StreamContract.Streams.USERNAME + ", "
+                   + StreamContract.Streams.STREAM_ID + ", "
+                   + StreamContract.Streams.STREAM_VERSION + "));");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamShed + " ("
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + StreamShed.SHED_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                   + "PRIMARY KEY (" + StreamContract.Streams.USERNAME + ", "
+                   + StreamContract.Streams.STREAM_ID + ", "
+                   + StreamContract.Streams.STREAM_VERSION + "));");
+
+        // Keep the summary up to date as points and blocks of points are added and removed
+        createSummaryTrigger(db, Tables.StreamData, "1");
+        createSummaryTrigger(db, Tables.StreamBlocks, StreamBlocks.POINT_COUNT);
+    }
+
+    /**
+     * Creates the insert and delete triggers which update {@link Tables#StreamSummary} for the
+     * given table
+     *
+     * @param db
+     * @param table  the table to watch
+     * @param points the expression for the number of points a row of the table holds
+     */
+    private void createSummaryTrigger(SQLiteDatabase db, String table, String points) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_summary_insert AFTER INSERT ON "
+                   + table + " BEGIN "
+                   + "INSERT OR IGNORE INTO " + Tables.StreamSummary + " ("
+                   + StreamContract.Streams.USERNAME + ", "
+                   + StreamContract.Streams.STREAM_ID + ", "
+                   + StreamContract.Streams.STREAM_VERSION + ") VALUES ("
+                   + "new." + StreamContract.Streams.USERNAME + ", "
+                   + "new." + StreamContract.Streams.STREAM_ID + ", "
+                   + "new." + StreamContract.Streams.STREAM_VERSION + "); "
+                   + "UPDATE " + Tables.StreamSummary + " SET " + StreamSummary.POINT_COUNT + "="
+                   + StreamSummary.POINT_COUNT + "+" + prefix("new.", points)
+                   + summaryRow("new.") + "; "
+                   + "END;");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_summary_delete AFTER DELETE ON "
+                   + table + " BEGIN "
+                   + "UPDATE " + Tables.StreamSummary + " SET " + StreamSummary.POINT_COUNT + "="
+                   + StreamSummary.POINT_COUNT + "-" + prefix("old.", points)
+                   + summaryRow("old.") + "; "
+                   + "DELETE FROM " + Tables.StreamSummary + summaryRow("old.") + " AND "
+                   + StreamSummary.POINT_COUNT + "<=0; "
+                   + "END;");
+    }
+
+    private static String prefix(String prefix, String column) {
+        return "1".equals(column) ? column : prefix + column;
+    }
+
+    private static String summaryRow(String row) {
+        return " WHERE " + StreamContract.Streams.USERNAME + "=" + row
+               + StreamContract.Streams.USERNAME + " AND "
+               + StreamContract.Streams.STREAM_ID + "=" + row
+               + StreamContract.Streams.STREAM_ID + " AND "
+               + StreamContract.Streams.STREAM_VERSION + "=" + row
+               + StreamContract.Streams.STREAM_VERSION;
     }
 
     @Override
@@ -107,6 +293,10 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
             db.execSQL("DROP TABLE IF EXISTS surveys");
             db.execSQL("DROP TABLE IF EXISTS responses");
             db.execSQL("DROP TABLE IF EXISTS stream_data");
+            db.execSQL("DROP TABLE IF EXISTS stream_blocks");
+            db.execSQL("DROP TABLE IF EXISTS stream_blocks_corrupt");
+            db.execSQL("DROP TABLE IF EXISTS stream_summary");
+            db.execSQL("DROP TABLE IF EXISTS stream_shed");
 
             // Also drop old tables from 2.0 version of app
             db.execSQL("DROP TABLE IF EXISTS campaigns");
@@ -115,14 +305,47 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
         }
 
         onCreate(db);
+
+        if (oldVersion < 39) {
+            // Count the points which were saved before the summary existed
+            String stream = StreamContract.Streams.USERNAME + ", "
+                            + StreamContract.Streams.STREAM_ID + ", "
+                            + StreamContract.Streams.STREAM_VERSION;
+            db.execSQL("INSERT OR REPLACE INTO " + Tables.StreamSummary + " SELECT " + stream
+                       + ", sum(points) FROM (SELECT " + stream + ", 1 AS points FROM "
+                       + Tables.StreamData + " UNION ALL SELECT " + stream + ", "
+                       + StreamBlocks.POINT_COUNT + " FROM " + Tables.StreamBlocks
+                       + ") GROUP BY " + stream);
+        }
+
+        if (oldVersion >= 41 && oldVersion < 43) {
+            db.execSQL("ALTER TABLE " + Tables.ResponseMedia + " ADD COLUMN "
+                       + ResponseMedia.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0");
+        }
     }
 
+    /**
+     * Deletes the account data. Media waiting to be uploaded is deleted along with its resumable
+     * upload offsets.
+     */
     public void clearAll() {
         SQLiteDatabase db = getWritableDatabase();
+        Cursor media = db.query(Tables.ResponseMedia, new String[]{ResponseMedia.MEDIA_PATH}, null,
+                null, null, null, null);
+        try {
+            while (media.moveToNext()) {
+                new File(media.getString(0)).delete();
+            }
+        } finally {
+            media.close();
+        }
+        MediaUploader.forgetAll(mContext);
+
         db.execSQL("DROP TABLE IF EXISTS " + Tables.Ohmlets);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.Streams);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.Surveys);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.Responses);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.ResponseMedia);
         onCreate(db);
     }
 }
@@ -17,34 +17,60 @@
 package org.ohmage.provider;
 
 import android.content.ContentProvider;
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 
+import org.ohmage.app.Ohmage;
+import org.ohmage.helper.IdempotencyIds;
 import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.ResponseContract.ResponseMedia;
 import org.ohmage.provider.ResponseContract.Responses;
 import org.ohmage.sync.ResponseSyncAdapter;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.inject.Inject;
+
 public class ResponseContentProvider extends ContentProvider {
 
+    /**
+     * Query parameter which limits the number of responses returned by a query of
+     * {@link Responses#CONTENT_URI}
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     // enum of the URIs we can match using sUriMatcher
     private interface MatcherTypes {
         int RESPONSES = 0;
         int RESPONSE_ID = 1;
+        int MEDIA = 2;
     }
 
-    private OhmageDbHelper dbHelper;
+    @Inject OhmageDbHelper dbHelper;
 
     private static UriMatcher sUriMatcher;
 
+    /**
+     * The changes made during {@link #applyBatch(ArrayList)} on this thread, and whether they
+     * should be synced to the network
+     */
+    private final ThreadLocal<Map<Uri, Boolean>> mBatch = new ThreadLocal<Map<Uri, Boolean>>();
+
     {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(ResponseContract.CONTENT_AUTHORITY, "responses", MatcherTypes.RESPONSES);
         sUriMatcher.addURI(ResponseContract.CONTENT_AUTHORITY, "responses/*", MatcherTypes.RESPONSE_ID);
+        sUriMatcher.addURI(ResponseContract.CONTENT_AUTHORITY, "media", MatcherTypes.MEDIA);
     }
 
     @Override
@@ -61,12 +87,16 @@ public class ResponseContentProvider extends ContentProvider {
                 count = dbHelper.getWritableDatabase().delete(Tables.Responses, Responses._ID + "=?",
                         new String[] {String.valueOf(id)});
                 break;
+            case MatcherTypes.MEDIA:
+                count = dbHelper.getWritableDatabase().delete(Tables.ResponseMedia, selection,
+                        selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("insert(): Unknown URI: " + uri);
         }
 
-        ContentResolver cr = getContext().getContentResolver();
-        cr.notifyChange(uri, null, !isSyncAdapter(uri));
+        if (count > 0)
+            notifyChange(uri);
 
         return count;
     }
@@ -77,6 +107,8 @@ public class ResponseContentProvider extends ContentProvider {
 
             case MatcherTypes.RESPONSES:
                 return Responses.CONTENT_ITEM_TYPE;
+            case MatcherTypes.MEDIA:
+                return ResponseMedia.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("getType(): Unknown URI: " + uri);
         }
@@ -87,13 +119,18 @@ public class ResponseContentProvider extends ContentProvider {
         long result = -1;
         String id = null;
 
-        ContentResolver cr = getContext().getContentResolver();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         switch (sUriMatcher.match(uri)) {
             case MatcherTypes.RESPONSES:
+                // The id lets the server ignore a response which is uploaded more than once
+                values.put(Responses.RESPONSE_METADATA,
+                        IdempotencyIds.ensureId(values.getAsString(Responses.RESPONSE_METADATA)));
                 result = db.insert(Tables.Responses, null, values);
                 break;
+            case MatcherTypes.MEDIA:
+                result = db.insert(Tables.ResponseMedia, null, values);
+                break;
             default:
                 throw new UnsupportedOperationException("insert(): Unknown URI: " + uri);
         }
@@ -101,14 +138,14 @@ public class ResponseContentProvider extends ContentProvider {
             if (id != null) {
                 uri = uri.buildUpon().appendPath(id).build();
             }
-            cr.notifyChange(uri, null, !isSyncAdapter(uri));
+            notifyChange(uri);
         }
         return uri;
     }
 
     @Override
     public boolean onCreate() {
-        dbHelper = new OhmageDbHelper(getContext());
+        ((Ohmage) getContext().getApplicationContext()).getApplicationGraph().inject(this);
         return true;
     }
 
@@ -121,6 +158,11 @@ public class ResponseContentProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
             case MatcherTypes.RESPONSES:
                 cursor = dbHelper.getReadableDatabase().query(Tables.Responses, projection,
+                        selection, selectionArgs, null, null, sortOrder,
+                        uri.getQueryParameter(QUERY_PARAMETER_LIMIT));
+                break;
+            case MatcherTypes.MEDIA:
+                cursor = dbHelper.getReadableDatabase().query(Tables.ResponseMedia, projection,
                         selection, selectionArgs, null, null, sortOrder);
                 break;
             default:
@@ -131,9 +173,72 @@ public class ResponseContentProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Applies all of the operations in a single transaction and notifies each changed table once
+     * at the end
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Map<Uri, Boolean> batch = new LinkedHashMap<Uri, Boolean>();
+        mBatch.set(batch);
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatch.remove();
+            if (successful) {
+                for (Entry<Uri, Boolean> change : batch.entrySet()) {
+                    getContext().getContentResolver()
+                            .notifyChange(change.getKey(), null, change.getValue());
+                }
+            }
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new UnsupportedOperationException("Update not allowed");
+        int count;
+        switch (sUriMatcher.match(uri)) {
+            case MatcherTypes.RESPONSES:
+                count = dbHelper.getWritableDatabase().update(Tables.Responses, values,
+                        selection, selectionArgs);
+                break;
+            case MatcherTypes.MEDIA:
+                count = dbHelper.getWritableDatabase().update(Tables.ResponseMedia, values,
+                        selection, selectionArgs);
+                break;
+            default:
+                throw new UnsupportedOperationException("Update not allowed");
+        }
+
+        if (count > 0)
+            notifyChange(uri);
+        return count;
+    }
+
+    /**
+     * Notifies observers of a change, or holds it back until the end of the current batch. Changes
+     * in a batch are notified on the table's content uri so each table is notified once.
+     */
+    private void notifyChange(Uri uri) {
+        boolean syncToNetwork = !isSyncAdapter(uri);
+        Map<Uri, Boolean> batch = mBatch.get();
+        if (batch == null) {
+            getContext().getContentResolver().notifyChange(uri, null, syncToNetwork);
+            return;
+        }
+
+        Uri table = sUriMatcher.match(uri) == MatcherTypes.MEDIA ? ResponseMedia.CONTENT_URI :
+                Responses.CONTENT_URI;
+        Boolean sync = batch.get(table);
+        batch.put(table, syncToNetwork || (sync != null && sync));
     }
 
     private boolean isSyncAdapter(Uri uri) {
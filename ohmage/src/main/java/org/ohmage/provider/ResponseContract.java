@@ -56,8 +56,27 @@ public class ResponseContract {
         String RESPONSE_DATA = "response_data";
     }
 
+    interface MediaColumns {
+        /**
+         * Id of the media in the response
+         */
+        String MEDIA_ID = "media_id";
+
+        /**
+         * Path of the media file on the system
+         */
+        String MEDIA_PATH = "media_path";
+
+        /**
+         * Number of times the server rejected the media
+         */
+        String ATTEMPTS = "attempts";
+    }
+
     private static final String PATH_RESPONSES = "responses";
 
+    private static final String PATH_MEDIA = "media";
+
     /**
      * Represents a response.
      */
@@ -71,4 +90,20 @@ public class ResponseContract {
                 "vnd.android.cursor.dir/vnd.ohmage.responses.response";
 
     }
+
+    /**
+     * Media for a response which was uploaded without it. The media is uploaded separately.
+     */
+    public static final class ResponseMedia implements BaseColumns, MediaColumns {
+
+        public static final String SURVEY_ID = ResponseColumns.SURVEY_ID;
+
+        public static final String SURVEY_VERSION = ResponseColumns.SURVEY_VERSION;
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_MEDIA).build();
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.ohmage.responses.media";
+    }
 }
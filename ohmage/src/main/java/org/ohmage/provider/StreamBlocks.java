@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact storage for stream points. Instead of a row per point, a batch of points for a single
+ * stream and account is stored as one row holding a deflated, length-prefixed list of the
+ * metadata and data strings. The blocks for a stream are expanded back into
+ * {@link Tables#StreamData} when the stream is read so callers always see a row per point.
+ */
+public class StreamBlocks {
+
+    private static final String TAG = "StreamBlocks";
+
+    /**
+     * Strings longer than this can only come from a corrupt block
+     */
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * The number of blocks read by each query when they are expanded
+     */
+    private static final int PAGE_SIZE = 16;
+
+    /**
+     * The number of points held in the block
+     */
+    public static final String POINT_COUNT = "point_count";
+
+    /**
+     * The compressed points
+     */
+    public static final String POINTS = "points";
+
+    private interface BlockQuery {
+        static final String[] PROJECTION = new String[]{
+                BaseColumns._ID,
+                StreamContract.Streams.STREAM_ID,
+                StreamContract.Streams.STREAM_VERSION,
+                StreamContract.Streams.USERNAME,
+                POINTS
+        };
+
+        static final int ID = 0;
+
+        static final int STREAM_ID = 1;
+
+        static final int STREAM_VERSION = 2;
+
+        static final int USERNAME = 3;
+
+        static final int POINTS = 4;
+    }
+
+    /**
+     * Groups the points by stream and version and stores each group as a single block
+     *
+     * @param db       the database to write to. Should already be in a transaction
+     * @param username the account the points belong to
+     * @param values   the points
+     * @return the number of points which were stored
+     */
+    public static int insert(SQLiteDatabase db, String username, ContentValues[] values) {
+        Map<String, List<ContentValues>> streams = new LinkedHashMap<String, List<ContentValues>>();
+        for (ContentValues v : values) {
+            String key = v.getAsString(StreamContract.Streams.STREAM_ID) + ":"
+                         + v.getAsString(StreamContract.Streams.STREAM_VERSION);
+            List<ContentValues> points = streams.get(key);
+            if (points == null) {
+                points = new ArrayList<ContentValues>();
+                streams.put(key, points);
+            }
+            points.add(v);
+        }
+
+        int count = 0;
+        for (List<ContentValues> points : streams.values()) {
+            ContentValues block = new ContentValues();
+            block.put(StreamContract.Streams.STREAM_ID,
+                    points.get(0).getAsString(StreamContract.Streams.STREAM_ID));
+            block.put(StreamContract.Streams.STREAM_VERSION,
+                    points.get(0).getAsLong(StreamContract.Streams.STREAM_VERSION));
+            block.put(StreamContract.Streams.USERNAME, username);
+            block.put(POINT_COUNT, points.size());
+            block.put(POINTS, encode(points));
+            if (db.insert(Tables.StreamBlocks, BaseColumns._ID, block) != -1)
+                count += points.size();
+        }
+        return count;
+    }
+
+    /**
+     * Expands the blocks which match the selection into rows in {@link Tables#StreamData} and
+     * deletes them. Each block is expanded in its own transaction. A block which can't be read is
+     * moved to {@link Tables#StreamBlocksCorrupt} so it doesn't stop other points being read.
+     *
+     * @param db            the database
+     * @param selection     a selection on the stream and account columns, or null for all blocks
+     * @param selectionArgs
+     * @param limit         the most blocks to expand, or 0 for no limit
+     * @return the number of blocks which were removed
+     */
+    public static int expand(SQLiteDatabase db, String selection, String[] selectionArgs,
+            int limit) {
+        // Blocks are read a page at a time by id, and each page is read completely before any
+        // block is deleted. A cursor which stayed open while rows were deleted would skip rows
+        // when its window is refilled.
+        String pageSelection = BaseColumns._ID + ">?"
+                               + (selection != null ? " AND (" + selection + ")" : "");
+        String[] pageArgs = new String[1 + (selectionArgs != null ? selectionArgs.length : 0)];
+        if (selectionArgs != null)
+            System.arraycopy(selectionArgs, 0, pageArgs, 1, selectionArgs.length);
+
+        int count = 0;
+        long lastId = 0;
+        while (limit <= 0 || count < limit) {
+            int pageSize = limit > 0 ? Math.min(PAGE_SIZE, limit - count) : PAGE_SIZE;
+            pageArgs[0] = String.valueOf(lastId);
+
+            List<Long> ids = new ArrayList<Long>(pageSize);
+            List<List<ContentValues>> decoded = new ArrayList<List<ContentValues>>(pageSize);
+            Cursor blocks = db.query(Tables.StreamBlocks, BlockQuery.PROJECTION, pageSelection,
+                    pageArgs, null, null, BaseColumns._ID, String.valueOf(pageSize));
+            try {
+                while (blocks.moveToNext()) {
+                    long id = blocks.getLong(BlockQuery.ID);
+                    List<ContentValues> points = null;
+                    try {
+                        points = decode(blocks);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Moving unreadable stream block " + id + " aside", e);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Moving unreadable stream block " + id + " aside", e);
+                    }
+                    ids.add(id);
+                    decoded.add(points);
+                }
+            } finally {
+                blocks.close();
+            }
+
+            for (int i = 0; i < ids.size(); i++) {
+                expand(db, ids.get(i), decoded.get(i));
+                count++;
+            }
+            if (ids.size() < pageSize)
+                break;
+            lastId = ids.get(ids.size() - 1);
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the points of a block and deletes it in one transaction
+     *
+     * @param points the points in the block, or null if it couldn't be read
+     */
+    private static void expand(SQLiteDatabase db, long id, List<ContentValues> points) {
+        db.beginTransaction();
+        try {
+            if (points != null) {
+                for (ContentValues values : points) {
+                    db.insert(Tables.StreamData, BaseColumns._ID, values);
+                }
+            } else {
+                db.execSQL("INSERT INTO " + Tables.StreamBlocksCorrupt + " SELECT * FROM "
+                           + Tables.StreamBlocks + " WHERE " + BaseColumns._ID + "=" + id);
+            }
+            db.delete(Tables.StreamBlocks, BaseColumns._ID + "=" + id, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Reads every point in the block at the cursor's position
+     */
+    private static List<ContentValues> decode(Cursor block) throws IOException {
+        String streamId = block.getString(BlockQuery.STREAM_ID);
+        long streamVersion = block.getLong(BlockQuery.STREAM_VERSION);
+        String username = block.getString(BlockQuery.USERNAME);
+
+        List<ContentValues> points = new ArrayList<ContentValues>();
+        DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(block.getBlob(BlockQuery.POINTS))));
+        try {
+            for (int i = in.readInt(); i > 0; i--) {
+                ContentValues values = new ContentValues();
+                values.put(StreamContract.Streams.STREAM_ID, streamId);
+                values.put(StreamContract.Streams.STREAM_VERSION, streamVersion);
+                values.put(StreamContract.Streams.USERNAME, username);
+                values.put(StreamContract.Streams.STREAM_METADATA, readString(in));
+                values.put(StreamContract.Streams.STREAM_DATA, readString(in));
+                points.add(values);
+            }
+        } finally {
+            in.close();
+        }
+        return points;
+    }
+
+    /**
+     * Compresses the metadata and data of the points
+     *
+     * @param points the points to compress
+     * @return the compressed points
+     */
+    static byte[] encode(List<ContentValues> points) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        try {
+            out.writeInt(points.size());
+            for (ContentValues point : points) {
+                writeString(out, point.getAsString(StreamContract.Streams.STREAM_METADATA));
+                writeString(out, point.getAsString(StreamContract.Streams.STREAM_DATA));
+            }
+            out.close();
+        } catch (IOException e) {
+            // Writing to a byte array should never fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > MAX_STRING_BYTES)
+            throw new IOException("String of " + length + " bytes is too long");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -20,32 +20,120 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
 import android.content.ContentProvider;
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 
 import org.ohmage.app.Ohmage;
+import org.ohmage.app.R;
 import org.ohmage.auth.AuthUtil;
+import org.ohmage.helper.IdempotencyIds;
 import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamQuota.EvictionPolicy;
 import org.ohmage.streams.AsyncBulkInsertHandler;
 import org.ohmage.streams.StreamContract;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import javax.inject.Inject;
 
 public class StreamContentProvider extends ContentProvider implements OnAccountsUpdateListener {
 
+    /**
+     * Query parameter which limits the number of points returned by a query of
+     * {@link StreamContract.Streams#CONTENT_URI}
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameters which name the stream a query of {@link StreamContract.Streams#CONTENT_URI}
+     * reads. Only the compact blocks of that stream are expanded before it is read. Without them
+     * every block is expanded.
+     */
+    public static final String QUERY_PARAMETER_STREAM_ID = "stream_id";
+
+    public static final String QUERY_PARAMETER_STREAM_VERSION = "stream_version";
+
+    /**
+     * The number of points waiting to be uploaded for each stream of each account. This is
+     * maintained as points are added and removed so it can be read without scanning all points.
+     * Rows have the {@link StreamContract.Streams#USERNAME},
+     * {@link StreamContract.Streams#STREAM_ID}, {@link StreamContract.Streams#STREAM_VERSION} and
+     * {@link #POINT_COUNT} columns.
+     */
+    public static final class StreamSummary {
+
+        public static final Uri CONTENT_URI = Uri.parse(
+                "content://" + StreamContract.CONTENT_AUTHORITY + "/summary");
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.ohmage.streams.summary";
+
+        /**
+         * The number of points for the stream
+         */
+        public static final String POINT_COUNT = "point_count";
+    }
+
+    /**
+     * The number of points for each stream of each account which were shed because a
+     * {@link StreamQuota} was reached. Rows have the {@link StreamContract.Streams#USERNAME},
+     * {@link StreamContract.Streams#STREAM_ID}, {@link StreamContract.Streams#STREAM_VERSION} and
+     * {@link #SHED_COUNT} columns.
+     */
+    public static final class StreamShed {
+
+        public static final Uri CONTENT_URI = Uri.parse(
+                "content://" + StreamContract.CONTENT_AUTHORITY + "/shed");
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.ohmage.streams.shed";
+
+        /**
+         * The number of points which were shed
+         */
+        public static final String SHED_COUNT = "shed_count";
+    }
+
     @Inject AccountManager am;
 
     private AsyncBulkInsertHandler mAsyncQueryHandler;
 
-    private String mAccount;
+    /**
+     * The name of the account points are saved for. Updated from the account manager's thread,
+     * so it should be read once into a local for each operation.
+     */
+    private volatile String mAccount;
+
+    private StreamWriteQueue mWriteQueue;
+
+    private ChangeNotifier mNotifier;
+
+    /**
+     * If true, points which are inserted in bulk are stored as compressed {@link StreamBlocks}
+     */
+    private boolean mCompactStorage;
+
+    private StreamQuota mQuota;
 
     // enum of the URIs we can match using sUriMatcher
     private interface MatcherTypes {
@@ -54,18 +142,62 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
         int STREAMS_ID = 1;
 
         int COUNTS = 2;
+
+        int SUMMARY = 3;
+
+        int SHED = 4;
     }
 
-    private OhmageDbHelper dbHelper;
+    @Inject OhmageDbHelper dbHelper;
 
     private static UriMatcher sUriMatcher;
 
+    /**
+     * Maps the columns of a {@link MatcherTypes#COUNTS} query onto {@link Tables#StreamSummary}
+     * so it can be answered without grouping every point
+     */
+    private static final HashMap<String, String> sCountsProjectionMap;
+
+    static {
+        sCountsProjectionMap = new HashMap<String, String>();
+        for (String column : new String[]{StreamContract.Streams.USERNAME,
+                StreamContract.Streams.STREAM_ID, StreamContract.Streams.STREAM_VERSION}) {
+            sCountsProjectionMap.put(column, column);
+        }
+        for (String column : new String[]{StreamSummary.POINT_COUNT, "count(*)", "COUNT(*)",
+                BaseColumns._COUNT}) {
+            sCountsProjectionMap.put(column,
+                    "sum(" + StreamSummary.POINT_COUNT + ") AS \"" + column + "\"");
+        }
+    }
+
+    /**
+     * The columns a {@link MatcherTypes#COUNTS} selection can use and still be answered from the
+     * summary
+     */
+    private static final Set<String> sCountsKeyColumns = new HashSet<String>(Arrays.asList(
+            StreamContract.Streams.USERNAME, StreamContract.Streams.STREAM_ID,
+            StreamContract.Streams.STREAM_VERSION));
+
+    /**
+     * Matches a quoted identifier, a bare identifier or keyword, or a "count(*)" column
+     */
+    private static final Pattern SQL_TOKEN =
+            Pattern.compile("\"([^\"]*)\"|(count\\(\\*\\)|[A-Za-z_][A-Za-z0-9_]*)",
+                    Pattern.CASE_INSENSITIVE);
+
+    private static final Set<String> SQL_KEYWORDS = new HashSet<String>(Arrays.asList("AND",
+            "OR", "NOT", "IS", "NULL", "IN", "LIKE", "GLOB", "BETWEEN", "ESCAPE", "ASC", "DESC",
+            "COLLATE", "NOCASE", "BINARY", "RTRIM"));
+
     {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "streams", MatcherTypes.STREAMS);
         sUriMatcher
                 .addURI(StreamContract.CONTENT_AUTHORITY, "streams/*/*", MatcherTypes.STREAMS_ID);
         sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "counts", MatcherTypes.COUNTS);
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "summary", MatcherTypes.SUMMARY);
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "shed", MatcherTypes.SHED);
     }
 
     @Override
@@ -96,6 +228,10 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
                 return StreamContract.Streams.CONTENT_TYPE;
             case MatcherTypes.COUNTS:
                 return StreamContract.StreamCounts.CONTENT_TYPE;
+            case MatcherTypes.SUMMARY:
+                return StreamSummary.CONTENT_TYPE;
+            case MatcherTypes.SHED:
+                return StreamShed.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("getType(): Unknown URI: " + uri);
         }
@@ -107,25 +243,34 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
     public Uri insert(Uri uri, ContentValues values) {
         long id = -1;
 
-        ContentResolver cr = getContext().getContentResolver();
-
         switch (sUriMatcher.match(uri)) {
             case MatcherTypes.STREAMS:
 
-                if (mAccount == null) {
+                String account = mAccount;
+                if (account == null) {
                     return null;
                 }
 
-                // Set the correct username
-                values.put(StreamContract.Streams.USERNAME, mAccount);
-
                 SQLiteDatabase db = dbHelper.getWritableDatabase();
-                db.insert(Tables.StreamData, BaseColumns._ID, values);
+                db.beginTransaction();
+                StreamDataInserter inserter = new StreamDataInserter(db);
+                try {
+                    ContentValues[] accepted =
+                            mQuota.enforce(db, account, new ContentValues[]{values});
+                    IdempotencyIds.ensureIds(accepted, StreamContract.Streams.STREAM_METADATA);
+                    if (accepted.length != 0)
+                        id = inserter.insert(account, accepted[0]);
+                    db.setTransactionSuccessful();
+                } finally {
+                    inserter.close();
+                    db.endTransaction();
+                }
 
                 break;
             default:
                 throw new UnsupportedOperationException("insert(): Unknown URI: " + uri);
         }
+        notifyInsert(uri, id != -1 ? 1 : 0);
         if (id != -1)
             return ContentUris.withAppendedId(StreamContract.Streams.CONTENT_URI, id);
         return null;
@@ -133,10 +278,23 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
 
     @Override
     public boolean onCreate() {
-        dbHelper = new OhmageDbHelper(getContext());
-
         ((Ohmage) getContext().getApplicationContext()).getApplicationGraph().inject(this);
 
+        Resources res = getContext().getResources();
+        mCompactStorage = res.getBoolean(R.bool.compact_stream_storage);
+        mQuota = new StreamQuota(res.getInteger(R.integer.stream_quota_per_stream),
+                res.getInteger(R.integer.stream_quota_total),
+                EvictionPolicy.fromString(res.getString(R.string.stream_eviction_policy)));
+        mNotifier = new ChangeNotifier(getContext().getContentResolver(),
+                new Handler(Looper.getMainLooper()),
+                res.getInteger(R.integer.content_notification_delay_millis));
+        mWriteQueue = new StreamWriteQueue(dbHelper) {
+            @Override
+            protected int write(SQLiteDatabase db, String account, ContentValues[] values) {
+                return insertPoints(db, account, values);
+            }
+        };
+
         am.addOnAccountsUpdatedListener(this, null, true);
 
         mAsyncQueryHandler = new AsyncBulkInsertHandler(getContext().getContentResolver(),
@@ -161,16 +319,24 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
         Cursor cursor;
         switch (sUriMatcher.match(uri)) {
             case MatcherTypes.COUNTS:
-                SQLiteQueryBuilder streams = new SQLiteQueryBuilder();
-                streams.setTables(Tables.StreamData);
-                cursor = streams.query(dbHelper.getReadableDatabase(), projection, selection,
-                        selectionArgs, StreamContract.Streams.STREAM_ID + ", "
-                                       + StreamContract.Streams.STREAM_VERSION, null, sortOrder);
+                cursor = queryCounts(projection, selection, selectionArgs, sortOrder);
+                break;
+            case MatcherTypes.SUMMARY:
+                cursor = dbHelper.getReadableDatabase()
+                        .query(Tables.StreamSummary, projection, selection,
+                                selectionArgs, null, null, sortOrder);
+                break;
+            case MatcherTypes.SHED:
+                cursor = dbHelper.getReadableDatabase()
+                        .query(Tables.StreamShed, projection, selection,
+                                selectionArgs, null, null, sortOrder);
                 break;
             case MatcherTypes.STREAMS:
+                expandBlocks(uri);
                 cursor = dbHelper.getReadableDatabase()
                         .query(Tables.StreamData, projection, selection,
-                                selectionArgs, null, null, sortOrder);
+                                selectionArgs, null, null, sortOrder,
+                                uri.getQueryParameter(QUERY_PARAMETER_LIMIT));
                 break;
             default:
                 throw new UnsupportedOperationException("query(): Unknown URI: " + uri);
@@ -180,14 +346,48 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
         return cursor;
     }
 
+    /**
+     * Applies all of the operations in a single transaction. Observers are only notified if it is
+     * committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean successful = false;
+        mNotifier.beginBatch();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            if (successful)
+                mNotifier.endBatch();
+            else
+                mNotifier.cancelBatch();
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         throw new UnsupportedOperationException("Update not allowed");
     }
 
+    /**
+     * Points are written by the {@link StreamWriteQueue} so concurrent callers don't block each
+     * other and share a transaction
+     */
     @Override
-    public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
-        int count = 0;
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        switch (sUriMatcher.match(uri)) {
+            case MatcherTypes.STREAMS:
+                break;
+            default:
+                throw new UnsupportedOperationException("bulkInsert(): Unknown URI: " + uri);
+        }
 
         // We can't insert any points if no account exists.
         String account = mAccount;
@@ -195,43 +395,118 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
             return 0;
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        int count = mWriteQueue.submit(account, values);
 
-        try {
-            db.beginTransaction();
+        notifyInsert(uri, count);
 
-            String table;
-            switch (sUriMatcher.match(uri)) {
-                case MatcherTypes.STREAMS:
-                    table = Tables.StreamData;
-                    break;
-                default:
-                    throw new UnsupportedOperationException("bulkInsert(): Unknown URI: " + uri);
+        return count;
+    }
+
+    /**
+     * Reads the counts from the summary. If the query uses columns the summary doesn't have, the
+     * points are grouped instead.
+     */
+    private Cursor queryCounts(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        if (isSummaryQuery(projection, selection, sortOrder)) {
+            SQLiteQueryBuilder summary = new SQLiteQueryBuilder();
+            summary.setTables(Tables.StreamSummary);
+            summary.setProjectionMap(sCountsProjectionMap);
+            return summary.query(dbHelper.getReadableDatabase(), projection, selection,
+                    selectionArgs, StreamContract.Streams.STREAM_ID + ", "
+                                   + StreamContract.Streams.STREAM_VERSION, null, sortOrder);
+        }
+
+        StreamBlocks.expand(dbHelper.getWritableDatabase(), null, null, 0);
+        SQLiteQueryBuilder streams = new SQLiteQueryBuilder();
+        streams.setTables(Tables.StreamData);
+        return streams.query(dbHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, StreamContract.Streams.STREAM_ID + ", "
+                                + StreamContract.Streams.STREAM_VERSION, null, sortOrder);
+    }
+
+    /**
+     * Checks if a {@link MatcherTypes#COUNTS} query can be answered from the summary. The
+     * selection may only use the stream key columns and the sort order may also use the
+     * projected counts.
+     */
+    private static boolean isSummaryQuery(String[] projection, String selection,
+            String sortOrder) {
+        if (projection != null) {
+            for (String column : projection) {
+                if (!sCountsProjectionMap.containsKey(column))
+                    return false;
             }
+        }
+        return usesOnly(selection, sCountsKeyColumns)
+               && usesOnly(sortOrder, sCountsProjectionMap.keySet());
+    }
 
-            for (ContentValues v : values) {
-                v.put(StreamContract.Streams.USERNAME, mAccount);
-                if (db.insert(table, BaseColumns._ID, v) != -1)
-                    count++;
+    /**
+     * Checks that each identifier in the sql is one of the columns or a keyword which doesn't
+     * refer to a column. String literals and bind arguments are ignored.
+     */
+    private static boolean usesOnly(String sql, Set<String> columns) {
+        if (sql == null)
+            return true;
+        Matcher m = SQL_TOKEN.matcher(sql.replaceAll("'[^']*'", "''"));
+        while (m.find()) {
+            String quoted = m.group(1);
+            String token = m.group(2);
+            if (quoted != null) {
+                if (!columns.contains(quoted))
+                    return false;
+            } else if (!columns.contains(token)
+                       && !SQL_KEYWORDS.contains(token.toUpperCase(Locale.US))) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+    /**
+     * Expands the blocks of the stream named by the uri, or every block if it doesn't name one
+     */
+    private void expandBlocks(Uri uri) {
+        String streamId = uri.getQueryParameter(QUERY_PARAMETER_STREAM_ID);
+        String streamVersion = uri.getQueryParameter(QUERY_PARAMETER_STREAM_VERSION);
+        if (streamId != null && streamVersion != null) {
+            StreamBlocks.expand(dbHelper.getWritableDatabase(),
+                    StreamContract.Streams.STREAM_ID + "=? AND "
+                    + StreamContract.Streams.STREAM_VERSION + "=?",
+                    new String[]{streamId, streamVersion}, 0);
+        } else {
+            StreamBlocks.expand(dbHelper.getWritableDatabase(), null, null, 0);
         }
+    }
 
-        notifyInsert(uri, count);
+    private int insertPoints(SQLiteDatabase db, String account, ContentValues[] values) {
+        values = mQuota.enforce(db, account, values);
+        IdempotencyIds.ensureIds(values, StreamContract.Streams.STREAM_METADATA);
+
+        if (mCompactStorage)
+            return StreamBlocks.insert(db, account, values);
 
+        int count = 0;
+        StreamDataInserter inserter = new StreamDataInserter(db);
+        try {
+            for (ContentValues v : values) {
+                if (inserter.insert(account, v) != -1)
+                    count++;
+            }
+        } finally {
+            inserter.close();
+        }
         return count;
     }
 
     private void notifyInsert(Uri uri, Integer count) {
         if (count > 0) {
-            ContentResolver cr = getContext().getContentResolver();
-
             switch (sUriMatcher.match(uri)) {
                 case MatcherTypes.STREAMS:
-                    cr.notifyChange(StreamContract.Streams.CONTENT_URI, null, false);
+                    mNotifier.notifyChange(StreamContract.Streams.CONTENT_URI);
+                    mNotifier.notifyChange(StreamSummary.CONTENT_URI);
+                    mNotifier.notifyChange(StreamShed.CONTENT_URI);
                     break;
             }
         }
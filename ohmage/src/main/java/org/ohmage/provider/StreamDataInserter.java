@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract.Streams;
+
+/**
+ * Inserts points into the stream_data table with a single compiled statement. The statement is
+ * compiled once and reused for every point, which avoids building the sql and a copy of the
+ * values for each row like {@link SQLiteDatabase#insert(String, String, ContentValues)} does.
+ * Call {@link #close()} when the points are inserted.
+ */
+public class StreamDataInserter {
+
+    private static final String SQL = "INSERT INTO " + Tables.StreamData + " ("
+                                      + Streams.USERNAME + ", "
+                                      + Streams.STREAM_ID + ", "
+                                      + Streams.STREAM_VERSION + ", "
+                                      + Streams.STREAM_METADATA + ", "
+                                      + Streams.STREAM_DATA + ") VALUES (?,?,?,?,?)";
+
+    private final SQLiteStatement mStatement;
+
+    public StreamDataInserter(SQLiteDatabase db) {
+        mStatement = db.compileStatement(SQL);
+    }
+
+    /**
+     * Inserts a point. Like {@link SQLiteDatabase#insert(String, String, ContentValues)}, a point
+     * which can't be inserted is skipped.
+     *
+     * @param username the account the point belongs to
+     * @param values   the stream id, version, metadata and data for the point
+     * @return the row id of the point, or -1 if it couldn't be inserted
+     */
+    public long insert(String username, ContentValues values) {
+        mStatement.clearBindings();
+        bind(1, username);
+        bind(2, values.get(Streams.STREAM_ID));
+        bind(3, values.get(Streams.STREAM_VERSION));
+        bind(4, values.get(Streams.STREAM_METADATA));
+        bind(5, values.get(Streams.STREAM_DATA));
+        try {
+            return mStatement.executeInsert();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public void close() {
+        mStatement.close();
+    }
+
+    private void bind(int index, Object value) {
+        if (value == null) {
+            mStatement.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer) {
+            mStatement.bindLong(index, ((Number) value).longValue());
+        } else {
+            mStatement.bindString(index, value.toString());
+        }
+    }
+}
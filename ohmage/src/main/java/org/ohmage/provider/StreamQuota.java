@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import org.ohmage.helper.IdSelectionBuilder;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider.StreamShed;
+import org.ohmage.provider.StreamContentProvider.StreamSummary;
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Limits how many points waiting to be uploaded are kept for each stream and in total. When a
+ * quota would be exceeded, points are shed according to the {@link EvictionPolicy}. The number of
+ * points shed for each stream is counted in {@link Tables#StreamShed}.
+ */
+public class StreamQuota {
+
+    public enum EvictionPolicy {
+        /**
+         * Delete the oldest stored points to make room for new ones
+         */
+        DROP_OLDEST,
+
+        /**
+         * Delete every other one of the oldest stored points to make room for new ones, which
+         * keeps a lower resolution copy of the old data
+         */
+        DOWNSAMPLE,
+
+        /**
+         * Keep the stored points and don't accept new ones
+         */
+        REJECT;
+
+        public static EvictionPolicy fromString(String policy) {
+            return valueOf(policy.toUpperCase(Locale.US));
+        }
+    }
+
+    private static final String STREAM_SELECTION = Streams.USERNAME + "=? AND "
+                                                   + Streams.STREAM_ID + "=? AND "
+                                                   + Streams.STREAM_VERSION + "=?";
+
+    private static final String[] EVICT_PROJECTION = new String[]{
+            BaseColumns._ID, Streams.USERNAME, Streams.STREAM_ID, Streams.STREAM_VERSION
+    };
+
+    private final long mStreamQuota;
+
+    private final long mTotalQuota;
+
+    private final EvictionPolicy mPolicy;
+
+    /**
+     * @param streamQuota the most points kept for each stream of each account, or 0 for no limit
+     * @param totalQuota  the most points kept in total, or 0 for no limit
+     * @param policy      how points are shed when a quota is reached
+     */
+    public StreamQuota(long streamQuota, long totalQuota, EvictionPolicy policy) {
+        mStreamQuota = streamQuota;
+        mTotalQuota = totalQuota;
+        mPolicy = policy;
+    }
+
+    /**
+     * Makes sure that inserting the points will not go over the quotas. Stored points may be
+     * evicted, and the points which should not be inserted are removed.
+     *
+     * @param db      the db, which should already be in a transaction
+     * @param account the account the points are for
+     * @param values  the points which will be inserted
+     * @return the points which should be inserted
+     */
+    public ContentValues[] enforce(SQLiteDatabase db, String account, ContentValues[] values) {
+        if (mStreamQuota <= 0 && mTotalQuota <= 0)
+            return values;
+
+        Map<String, List<ContentValues>> streams =
+                new LinkedHashMap<String, List<ContentValues>>();
+        for (ContentValues v : values) {
+            String key = v.getAsString(Streams.STREAM_ID) + ":"
+                         + v.getAsString(Streams.STREAM_VERSION);
+            List<ContentValues> points = streams.get(key);
+            if (points == null) {
+                points = new ArrayList<ContentValues>();
+                streams.put(key, points);
+            }
+            points.add(v);
+        }
+
+        List<ContentValues> accepted = new ArrayList<ContentValues>(values.length);
+        for (List<ContentValues> points : streams.values()) {
+            if (mStreamQuota > 0) {
+                String[] args = new String[]{account,
+                        points.get(0).getAsString(Streams.STREAM_ID),
+                        points.get(0).getAsString(Streams.STREAM_VERSION)};
+                long stored = DatabaseUtils.longForQuery(db, "SELECT ifnull(sum("
+                        + StreamSummary.POINT_COUNT + "),0) FROM " + Tables.StreamSummary
+                        + " WHERE " + STREAM_SELECTION, args);
+                long over = stored + points.size() - mStreamQuota;
+                if (over > 0) {
+                    over -= evict(db, STREAM_SELECTION, args, over);
+                    reject(db, account, points, over);
+                }
+            }
+            accepted.addAll(points);
+        }
+
+        if (mTotalQuota > 0) {
+            long stored = DatabaseUtils.longForQuery(db, "SELECT ifnull(sum("
+                    + StreamSummary.POINT_COUNT + "),0) FROM " + Tables.StreamSummary, null);
+            long over = stored + accepted.size() - mTotalQuota;
+            if (over > 0) {
+                over -= evict(db, null, null, over);
+                reject(db, account, accepted, over);
+            }
+        }
+
+        return accepted.toArray(new ContentValues[accepted.size()]);
+    }
+
+    /**
+     * Deletes stored points according to the policy. Blocks are counted in the summary, so if there
+     * aren't enough expanded points the oldest blocks are expanded one at a time until there are.
+     *
+     * @return the number of points which were deleted
+     */
+    private long evict(SQLiteDatabase db, String selection, String[] args, long count) {
+        if (mPolicy == EvictionPolicy.REJECT)
+            return 0;
+
+        long evicted = evictPoints(db, selection, args, count);
+        while (evicted < count && StreamBlocks.expand(db, selection, args, 1) != 0) {
+            evicted += evictPoints(db, selection, args, count - evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * Deletes expanded points according to the policy
+     *
+     * @return the number of points which were deleted
+     */
+    private long evictPoints(SQLiteDatabase db, String selection, String[] args, long count) {
+        boolean downsample = mPolicy == EvictionPolicy.DOWNSAMPLE;
+        Cursor c = db.query(Tables.StreamData, EVICT_PROJECTION, selection, args, null, null,
+                BaseColumns._ID, String.valueOf(downsample ? count * 2 : count));
+
+        List<Long> ids = new ArrayList<Long>();
+        Map<String, Integer> shed = new HashMap<String, Integer>();
+        try {
+            while (ids.size() < count && c.moveToNext()) {
+                if (downsample && c.getPosition() % 2 == 0)
+                    continue;
+                ids.add(c.getLong(0));
+                String key = c.getString(1) + "\n" + c.getString(2) + "\n" + c.getString(3);
+                Integer n = shed.get(key);
+                shed.put(key, n == null ? 1 : n + 1);
+            }
+        } finally {
+            c.close();
+        }
+
+        for (String s : IdSelectionBuilder.build(BaseColumns._ID, ids)) {
+            db.delete(Tables.StreamData, s, null);
+        }
+        recordShed(db, shed);
+        return ids.size();
+    }
+
+    /**
+     * Removes the newest points from the list
+     */
+    private void reject(SQLiteDatabase db, String account, List<ContentValues> points,
+            long count) {
+        int keep = (int) Math.max(0, points.size() - count);
+        Map<String, Integer> shed = new HashMap<String, Integer>();
+        while (points.size() > keep) {
+            ContentValues v = points.remove(points.size() - 1);
+            String key = account + "\n" + v.getAsString(Streams.STREAM_ID) + "\n"
+                         + v.getAsString(Streams.STREAM_VERSION);
+            Integer n = shed.get(key);
+            shed.put(key, n == null ? 1 : n + 1);
+        }
+        recordShed(db, shed);
+    }
+
+    /**
+     * Adds to the shed counts
+     *
+     * @param shed the number of points shed keyed by account, stream id and version separated
+     *             by new lines
+     */
+    private static void recordShed(SQLiteDatabase db, Map<String, Integer> shed) {
+        for (Map.Entry<String, Integer> entry : shed.entrySet()) {
+            String[] args = entry.getKey().split("\n");
+            db.execSQL("INSERT OR IGNORE INTO " + Tables.StreamShed + " (" + Streams.USERNAME
+                       + ", " + Streams.STREAM_ID + ", " + Streams.STREAM_VERSION
+                       + ") VALUES (?,?,?)", args);
+            db.execSQL("UPDATE " + Tables.StreamShed + " SET " + StreamShed.SHED_COUNT + "="
+                       + StreamShed.SHED_COUNT + "+" + entry.getValue() + " WHERE "
+                       + STREAM_SELECTION, args);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes points to the db from a single thread. Any number of threads can {@link #submit} points
+ * without locking each other out. The writer thread takes everything that was submitted while it
+ * was busy and writes it in one transaction, so concurrent inserts share a single commit.
+ */
+public abstract class StreamWriteQueue {
+
+    private static final String TAG = "StreamWriteQueue";
+
+    private static class Request {
+        final String account;
+
+        final ContentValues[] values;
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        int count;
+
+        Throwable error;
+
+        Request(String account, ContentValues[] values) {
+            this.account = account;
+            this.values = values;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Request> mQueue = new ConcurrentLinkedQueue<Request>();
+
+    private final OhmageDbHelper mDbHelper;
+
+    private final Thread mWriter;
+
+    public StreamWriteQueue(OhmageDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+        mWriter = new Thread(new Runnable() {
+            @Override public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Writes the points in the current transaction. Called on the writer thread.
+     *
+     * @param db      the db, which is already in a transaction
+     * @param account the account the points belong to
+     * @param values  the points
+     * @return the number of points which were written
+     */
+    protected abstract int write(SQLiteDatabase db, String account, ContentValues[] values);
+
+    /**
+     * Queues the points to be written and waits until the transaction they are part of is
+     * committed
+     *
+     * @param account the account the points belong to. It is read once by the caller so every
+     *                point in the batch gets the same account.
+     * @param values  the points
+     * @return the number of points which were written
+     */
+    public int submit(String account, ContentValues[] values) {
+        Request request = new Request(account, values);
+        mQueue.offer(request);
+        LockSupport.unpark(mWriter);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                request.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (request.error instanceof RuntimeException)
+            throw (RuntimeException) request.error;
+        if (request.error != null)
+            throw new RuntimeException("Failed to write points", request.error);
+        return request.count;
+    }
+
+    private void writeLoop() {
+        List<Request> group = new ArrayList<Request>();
+        while (true) {
+            Request request;
+            while ((request = mQueue.poll()) != null) {
+                group.add(request);
+            }
+
+            if (group.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // Nothing may stop the loop, or every caller waiting on it would wait forever
+            try {
+                writeGroup(group);
+            } catch (Throwable t) {
+                Log.e(TAG, "Failed to write " + group.size() + " requests", t);
+                for (Request r : group) {
+                    r.count = 0;
+                    if (r.error == null)
+                        r.error = t;
+                }
+            } finally {
+                for (Request r : group) {
+                    r.done.countDown();
+                }
+                group.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the group in one transaction. If any request fails the whole transaction is rolled
+     * back and the requests are written again one transaction each, so a request which reports an
+     * error never has any of its points committed.
+     */
+    private void writeGroup(List<Request> group) {
+        if (group.size() == 1 || writeTransaction(group))
+            return;
+
+        Log.w(TAG, "Writing " + group.size() + " requests separately after a failure");
+        for (Request r : group) {
+            r.count = 0;
+            r.error = null;
+            writeTransaction(Collections.singletonList(r));
+        }
+    }
+
+    /**
+     * Writes the requests in one transaction, which is only committed if all of them succeed
+     *
+     * @return true if the transaction was committed
+     */
+    private boolean writeTransaction(List<Request> requests) {
+        Throwable error = null;
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Request r : requests) {
+                    try {
+                        r.count = write(db, r.account, r.values);
+                    } catch (Throwable e) {
+                        Log.e(TAG, "Failed to write " + r.values.length + " points", e);
+                        r.error = error = e;
+                        break;
+                    }
+                }
+                if (error == null)
+                    db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, "Failed to commit points", e);
+            error = e;
+        }
+
+        if (error == null)
+            return true;
+
+        // The transaction was rolled back so none of the points were written
+        for (Request r : requests) {
+            r.count = 0;
+            if (r.error == null)
+                r.error = error;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Rolls the points of configured streams into summaries of fixed time windows as they arrive.
+ * A summary has the number of points in the window, and the min, max and mean of each numeric
+ * field of the data. Points may arrive out of order, so a window stays open until a point more
+ * than a window later arrives, or until no point has been added to it for a while
+ * ({@link #flushIdle(long, long)}). Points for a window which was already emitted are dropped and
+ * counted. Points for streams which aren't configured are passed through as they are.
+ */
+public class StreamAggregator {
+
+    private static final String TAG = "StreamAggregator";
+
+    private static final DateTimeFormatter PARSER = ISODateTimeFormat.dateTimeParser();
+
+    private static final DateTimeFormatter PRINTER =
+            ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
+
+    private static class Stats {
+        double min = Double.POSITIVE_INFINITY;
+
+        double max = Double.NEGATIVE_INFINITY;
+
+        double sum;
+
+        long count;
+
+        void add(double value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+        }
+    }
+
+    private static class Window {
+        final String streamId;
+
+        final int streamVersion;
+
+        final long start;
+
+        final long end;
+
+        long count;
+
+        /**
+         * The wall clock time a point was last added
+         */
+        long updated;
+
+        final Map<String, Stats> fields = new LinkedHashMap<String, Stats>();
+
+        Window(String streamId, int streamVersion, long start, long length) {
+            this.streamId = streamId;
+            this.streamVersion = streamVersion;
+            this.start = start;
+            this.end = start + length;
+        }
+    }
+
+    private final JsonParser mParser = new JsonParser();
+
+    /**
+     * The window length in millis for each aggregated stream
+     */
+    private final Map<String, Long> mWindows = new HashMap<String, Long>();
+
+    /**
+     * The open windows of a stream, and how far the stream has been closed
+     */
+    private static class StreamWindows {
+        final TreeMap<Long, Window> open = new TreeMap<Long, Window>();
+
+        /**
+         * The latest point time seen
+         */
+        long newest = Long.MIN_VALUE;
+
+        /**
+         * Points before this time belong to windows which were already emitted
+         */
+        long closedBefore = Long.MIN_VALUE;
+    }
+
+    private final Map<String, StreamWindows> mStreams = new LinkedHashMap<String, StreamWindows>();
+
+    /**
+     * The number of points dropped because their window was already emitted
+     */
+    private long mDropped;
+
+    /**
+     * @param config the streams to aggregate. Each entry has the form
+     *               {@code schemaId:version:windowMillis}
+     */
+    public StreamAggregator(String[] config) {
+        for (String entry : config) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 3) {
+                Log.w(TAG, "Ignoring invalid aggregation " + entry);
+                continue;
+            }
+            try {
+                long length = Long.parseLong(parts[2]);
+                if (length > 0)
+                    mWindows.put(key(parts[0], Integer.parseInt(parts[1])), length);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid aggregation " + entry);
+            }
+        }
+    }
+
+    /**
+     * @return true if any streams are aggregated
+     */
+    public boolean hasAggregations() {
+        return !mWindows.isEmpty();
+    }
+
+    /**
+     * @return the number of points dropped because they arrived after their window was emitted
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Adds a point
+     *
+     * @param values the point
+     * @return the points which should be inserted. This is the point itself if its stream isn't
+     * aggregated, the summaries of any windows the point closed, or nothing.
+     */
+    public synchronized List<ContentValues> add(ContentValues values) {
+        String streamId = values.getAsString(Streams.STREAM_ID);
+        Integer streamVersion = values.getAsInteger(Streams.STREAM_VERSION);
+        if (streamId == null || streamVersion == null)
+            return Collections.singletonList(values);
+
+        String key = key(streamId, streamVersion);
+        Long length = mWindows.get(key);
+        if (length == null)
+            return Collections.singletonList(values);
+
+        StreamWindows stream = mStreams.get(key);
+        if (stream == null) {
+            stream = new StreamWindows();
+            mStreams.put(key, stream);
+        }
+
+        long time = timestamp(values.getAsString(Streams.STREAM_METADATA));
+        long start = time - time % length;
+        Window window = stream.open.get(start);
+        if (window == null) {
+            if (start < stream.closedBefore) {
+                mDropped++;
+                Log.w(TAG, "Dropping late point for " + key + ", " + mDropped + " dropped");
+                return Collections.emptyList();
+            }
+            window = new Window(streamId, streamVersion, start, length);
+            stream.open.put(start, window);
+        }
+
+        window.count++;
+        window.updated = System.currentTimeMillis();
+        JsonObject data = parseObject(values.getAsString(Streams.STREAM_DATA));
+        if (data != null) {
+            for (Map.Entry<String, JsonElement> field : data.entrySet()) {
+                JsonElement value = field.getValue();
+                if (!value.isJsonPrimitive() || !((JsonPrimitive) value).isNumber())
+                    continue;
+                Stats stats = window.fields.get(field.getKey());
+                if (stats == null) {
+                    stats = new Stats();
+                    window.fields.put(field.getKey(), stats);
+                }
+                stats.add(value.getAsDouble());
+            }
+        }
+
+        // Close the windows which end more than a window before the newest point
+        stream.newest = Math.max(stream.newest, time);
+        List<ContentValues> emitted = new ArrayList<ContentValues>(1);
+        while (!stream.open.isEmpty()) {
+            Window first = stream.open.firstEntry().getValue();
+            if (first.end + length > stream.newest)
+                break;
+            emitted.add(close(stream, first));
+        }
+        return emitted;
+    }
+
+    /**
+     * Closes the windows which haven't had a point added for a while. Should be called
+     * periodically so a stream which stops sending points doesn't hold its last window forever.
+     *
+     * @param now        the current wall clock time
+     * @param idleMillis how long a window can go without a point before it is closed
+     * @return the summaries of the closed windows
+     */
+    public synchronized List<ContentValues> flushIdle(long now, long idleMillis) {
+        List<ContentValues> emitted = new ArrayList<ContentValues>();
+        for (StreamWindows stream : mStreams.values()) {
+            for (Window window : new ArrayList<Window>(stream.open.values())) {
+                if (window.updated + idleMillis <= now)
+                    emitted.add(close(stream, window));
+            }
+        }
+        return emitted;
+    }
+
+    /**
+     * Closes every open window
+     *
+     * @return the summaries of the open windows
+     */
+    public synchronized List<ContentValues> flush() {
+        List<ContentValues> emitted = new ArrayList<ContentValues>();
+        for (StreamWindows stream : mStreams.values()) {
+            for (Window window : new ArrayList<Window>(stream.open.values())) {
+                emitted.add(close(stream, window));
+            }
+        }
+        return emitted;
+    }
+
+    private static ContentValues close(StreamWindows stream, Window window) {
+        stream.open.remove(window.start);
+        stream.closedBefore = Math.max(stream.closedBefore, window.end);
+        return summarize(window);
+    }
+
+    private static ContentValues summarize(Window window) {
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("id", UUID.randomUUID().toString());
+        metadata.addProperty("timestamp", PRINTER.print(window.start));
+
+        JsonObject data = new JsonObject();
+        data.addProperty("window_start", PRINTER.print(window.start));
+        data.addProperty("window_end", PRINTER.print(window.end));
+        data.addProperty("count", window.count);
+        for (Map.Entry<String, Stats> field : window.fields.entrySet()) {
+            Stats stats = field.getValue();
+            JsonObject summary = new JsonObject();
+            summary.addProperty("min", stats.min);
+            summary.addProperty("max", stats.max);
+            summary.addProperty("mean", stats.sum / stats.count);
+            data.add(field.getKey(), summary);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_ID, window.streamId);
+        values.put(Streams.STREAM_VERSION, window.streamVersion);
+        values.put(Streams.STREAM_METADATA, metadata.toString());
+        values.put(Streams.STREAM_DATA, data.toString());
+        return values;
+    }
+
+    /**
+     * Reads the timestamp from the metadata, or uses the current time if there isn't one
+     */
+    private long timestamp(String metadata) {
+        JsonObject object = parseObject(metadata);
+        if (object != null && object.has("timestamp")) {
+            try {
+                return PARSER.parseMillis(object.get("timestamp").getAsString());
+            } catch (RuntimeException e) {
+                // Fall back to the current time
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    private JsonObject parseObject(String json) {
+        if (json == null)
+            return null;
+        try {
+            JsonElement element = mParser.parse(json);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private static String key(String streamId, int streamVersion) {
+        return streamId + ":" + streamVersion;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects points sent to the {@link StreamReceiver} and inserts them with a single
+ * {@link ContentProviderClient#bulkInsert(Uri, ContentValues[])}. Points are inserted once there
+ * are enough of them, or once the oldest point has waited long enough. If points come in faster
+ * than they can be inserted, the buffer fills up and {@link #put(ContentValues)} blocks.
+ */
+public class StreamPointBuffer {
+
+    private static final String TAG = "StreamPointBuffer";
+
+    /**
+     * Put in the queue to tell the flush thread to insert what it has and stop
+     */
+    private static final ContentValues STOP = new ContentValues();
+
+    private final ContentProviderClient mProvider;
+
+    private final Uri mUri;
+
+    private final BlockingQueue<ContentValues> mQueue;
+
+    private final int mFlushSize;
+
+    private final long mFlushDelayMillis;
+
+    private final Thread mFlushThread;
+
+    private volatile boolean mClosed;
+
+    /**
+     * @param provider         provider used to insert the points
+     * @param uri              the uri points are inserted into
+     * @param capacity         the maximum number of points waiting to be inserted
+     * @param flushSize        the maximum number of points inserted at once
+     * @param flushDelayMillis the longest a point will wait before it is inserted
+     */
+    public StreamPointBuffer(ContentProviderClient provider, Uri uri, int capacity, int flushSize,
+            long flushDelayMillis) {
+        mProvider = provider;
+        mUri = uri;
+        mQueue = new ArrayBlockingQueue<ContentValues>(capacity);
+        mFlushSize = flushSize;
+        mFlushDelayMillis = flushDelayMillis;
+
+        mFlushThread = new Thread(new Runnable() {
+            @Override public void run() {
+                flushLoop();
+            }
+        }, TAG);
+        mFlushThread.start();
+    }
+
+    /**
+     * Adds a point to the buffer. Blocks while the buffer is full.
+     *
+     * @param values
+     * @throws InterruptedException  if the thread was interrupted while waiting for space
+     * @throws IllegalStateException if the buffer was closed
+     */
+    public void put(ContentValues values) throws InterruptedException {
+        if (mClosed)
+            throw new IllegalStateException("Buffer was closed");
+        mQueue.put(values);
+    }
+
+    /**
+     * Inserts all the points which are in the buffer and stops the flush thread. Blocks until
+     * the points are inserted.
+     */
+    public void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(STOP);
+                mFlushThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void flushLoop() {
+        List<ContentValues> batch = new ArrayList<ContentValues>(mFlushSize);
+        try {
+            while (true) {
+                ContentValues first = mQueue.take();
+                if (first == STOP)
+                    return;
+                batch.add(first);
+
+                long deadline = SystemClock.uptimeMillis() + mFlushDelayMillis;
+                boolean stop = false;
+                while (batch.size() < mFlushSize) {
+                    long wait = deadline - SystemClock.uptimeMillis();
+                    ContentValues next =
+                            wait > 0 ? mQueue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (next == null)
+                        break;
+                    if (next == STOP) {
+                        stop = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                flush(batch);
+                if (stop)
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Flush thread interrupted, inserting " + batch.size() + " points");
+            flush(batch);
+        }
+    }
+
+    private void flush(List<ContentValues> batch) {
+        if (batch.isEmpty())
+            return;
+
+        try {
+            mProvider.bulkInsert(mUri, batch.toArray(new ContentValues[batch.size()]));
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to insert " + batch.size() + " points", e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to insert " + batch.size() + " points", e);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.content.ContentValues;
+
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads points written to a pipe for {@link IBatchStreamReceiver#sendStreamPipe}. Each point is
+ * the metadata followed by the data, each written as a length and that many bytes of utf-8.
+ */
+public class StreamPointReader implements Closeable {
+
+    /**
+     * The largest metadata or data value which will be read
+     */
+    private static final int MAX_VALUE_BYTES = 1024 * 1024;
+
+    private final DataInputStream mIn;
+
+    private final String mStreamId;
+
+    private final int mStreamVersion;
+
+    public StreamPointReader(InputStream in, String streamId, int streamVersion) {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        mStreamId = streamId;
+        mStreamVersion = streamVersion;
+    }
+
+    /**
+     * Reads the next point
+     *
+     * @return the values for the point, or null if there are no more points
+     * @throws IOException if there was a problem reading or the point was cut off
+     */
+    public ContentValues next() throws IOException {
+        int metadataLength;
+        try {
+            metadataLength = mIn.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_ID, mStreamId);
+        values.put(Streams.STREAM_VERSION, mStreamVersion);
+        values.put(Streams.STREAM_METADATA, readString(metadataLength));
+        values.put(Streams.STREAM_DATA, readString(mIn.readInt()));
+        return values;
+    }
+
+    private String readString(int length) throws IOException {
+        if (length == -1)
+            return null;
+        if (length < 0 || length > MAX_VALUE_BYTES)
+            throw new IOException("Invalid length " + length);
+
+        byte[] bytes = new byte[length];
+        mIn.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Override public void close() throws IOException {
+        mIn.close();
+    }
+}
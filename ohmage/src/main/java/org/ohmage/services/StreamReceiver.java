@@ -17,15 +17,25 @@
 package org.ohmage.services;
 
 import android.app.Service;
+import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.util.Log;
 
-import org.ohmage.streams.AsyncBulkInsertHandler;
+import org.ohmage.app.R;
 import org.ohmage.streams.IStreamReceiver;
 import org.ohmage.streams.StreamContract.Streams;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * This service handles stream data from other apks. It validates information about data sent from
  * different apks and saves it to the db to be uploaded.
@@ -35,6 +45,14 @@ import org.ohmage.streams.StreamContract.Streams;
  */
 public class StreamReceiver extends Service {
 
+    private static final String TAG = "StreamReceiver";
+
+    /**
+     * Bind with this action to get an {@link IBatchStreamReceiver} which accepts many points at
+     * once
+     */
+    public static final String ACTION_WRITE_BATCH = "org.ohmage.streams.ACTION_WRITE_BATCH";
+
     /**
      * Action to view analytics data for a stream
      */
@@ -50,29 +68,171 @@ public class StreamReceiver extends Service {
      */
     public static final String STREAM_META_DATA = "org.ohmage.StreamReceiver";
 
-    private AsyncBulkInsertHandler mAsyncQueryHandler;
+    private ContentProviderClient mProvider;
+
+    private StreamPointBuffer mBuffer;
+
+    private StreamAggregator mAggregator;
+
+    private ScheduledExecutorService mAggregatorFlusher;
 
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_WRITE_BATCH.equals(intent.getAction()))
+            return mBatchBinder;
+
         return new IStreamReceiver.Stub() {
 
             @Override
             public void sendStream(String streamId, int streamVersion, String metadata, String data)
                     throws RemoteException {
-
-                ContentValues values = new ContentValues();
-                values.put(Streams.STREAM_ID, streamId);
-                values.put(Streams.STREAM_VERSION, streamVersion);
-                values.put(Streams.STREAM_METADATA, metadata);
-                values.put(Streams.STREAM_DATA, data);
-                mAsyncQueryHandler.startInsert(values);
+                try {
+                    for (ContentValues values : mAggregator.add(
+                            toValues(streamId, streamVersion, metadata, data))) {
+                        mBuffer.put(values);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
         };
     }
 
+    private final IBatchStreamReceiver.Stub mBatchBinder = new IBatchStreamReceiver.Stub() {
+
+        @Override
+        public void sendStreams(String streamId, int streamVersion, String[] metadata,
+                String[] data) throws RemoteException {
+            if (metadata.length != data.length)
+                throw new IllegalArgumentException("Metadata and data must be the same length");
+
+            List<ContentValues> batch = new ArrayList<ContentValues>(data.length);
+            for (int i = 0; i < data.length; i++) {
+                batch.addAll(mAggregator.add(
+                        toValues(streamId, streamVersion, metadata[i], data[i])));
+            }
+            insert(mProvider, batch);
+        }
+
+        @Override
+        public int sendStreamPipe(String streamId, int streamVersion, ParcelFileDescriptor points)
+                throws RemoteException {
+            StreamPointReader reader = new StreamPointReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(points), streamId, streamVersion);
+            return save(mProvider, mAggregator, reader,
+                    getResources().getInteger(R.integer.stream_buffer_flush_size));
+        }
+    };
+
+    /**
+     * Saves the points from the reader in batches of {@code flushSize} and closes it. If the
+     * points can't be read, the complete points before the error are still saved.
+     *
+     * @return the number of rows the provider saved
+     */
+    static int save(ContentProviderClient provider, StreamAggregator aggregator,
+            StreamPointReader reader, int flushSize) throws RemoteException {
+        List<ContentValues> batch = new ArrayList<ContentValues>(flushSize);
+        int read = 0;
+        int saved = 0;
+        try {
+            ContentValues values;
+            while ((values = reader.next()) != null) {
+                read++;
+                batch.addAll(aggregator.add(values));
+                if (batch.size() >= flushSize) {
+                    saved += insert(provider, batch);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading points after " + read, e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        return saved + insert(provider, batch);
+    }
+
+    /**
+     * Inserts the batch and clears it
+     *
+     * @return the number of rows the provider saved
+     */
+    private static int insert(ContentProviderClient provider, List<ContentValues> batch)
+            throws RemoteException {
+        if (batch.isEmpty())
+            return 0;
+        int count = provider.bulkInsert(Streams.CONTENT_URI,
+                batch.toArray(new ContentValues[batch.size()]));
+        batch.clear();
+        return count;
+    }
+
+    private static ContentValues toValues(String streamId, int streamVersion, String metadata,
+            String data) {
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_ID, streamId);
+        values.put(Streams.STREAM_VERSION, streamVersion);
+        values.put(Streams.STREAM_METADATA, metadata);
+        values.put(Streams.STREAM_DATA, data);
+        return values;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
-        mAsyncQueryHandler = new AsyncBulkInsertHandler(getContentResolver(), Streams.CONTENT_URI);
+        mProvider = getContentResolver().acquireContentProviderClient(Streams.CONTENT_URI);
+        mBuffer = new StreamPointBuffer(mProvider, Streams.CONTENT_URI,
+                getResources().getInteger(R.integer.stream_buffer_capacity),
+                getResources().getInteger(R.integer.stream_buffer_flush_size),
+                getResources().getInteger(R.integer.stream_buffer_flush_delay_millis));
+        mAggregator = new StreamAggregator(
+                getResources().getStringArray(R.array.stream_aggregations));
+
+        // Close windows of streams which stopped sending points
+        if (mAggregator.hasAggregations()) {
+            final long idleMillis =
+                    getResources().getInteger(R.integer.stream_aggregation_idle_millis);
+            mAggregatorFlusher = Executors.newSingleThreadScheduledExecutor();
+            mAggregatorFlusher.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() {
+                    try {
+                        for (ContentValues values :
+                                mAggregator.flushIdle(System.currentTimeMillis(), idleMillis)) {
+                            mBuffer.put(values);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        // Let a running idle flush finish putting its windows in the buffer before it is closed
+        if (mAggregatorFlusher != null) {
+            mAggregatorFlusher.shutdown();
+            try {
+                if (!mAggregatorFlusher.awaitTermination(10, TimeUnit.SECONDS))
+                    Log.w(TAG, "Timed out waiting for aggregated points to be flushed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            for (ContentValues values : mAggregator.flush()) {
+                mBuffer.put(values);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mBuffer.close();
+        mProvider.release();
+        super.onDestroy();
     }
 }
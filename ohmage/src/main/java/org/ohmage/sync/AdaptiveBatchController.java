@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.ohmage.models.Stream;
+
+import retrofit.RetrofitError;
+
+/**
+ * Chooses the batch size for each stream based on how previous uploads of the stream went. Three
+ * signals are kept for each stream: the latency of the last batch, and smoothed averages of the
+ * throughput and of the network error rate. Batches which upload quickly grow as long as the
+ * throughput keeps up and errors are rare. Batches which are slow, or fail often, shrink. The sizes
+ * and averages are saved so they carry over between syncs.
+ */
+public class AdaptiveBatchController {
+
+    private static final String PREFS_NAME = "stream_batch_sizes";
+
+    /**
+     * Uploads which take longer than this will cause the batch size to shrink
+     */
+    private static final long TARGET_LATENCY_MILLIS = 5000;
+
+    /**
+     * The weight of the newest sample in the smoothed throughput and error rate
+     */
+    private static final float SMOOTHING = 0.2f;
+
+    /**
+     * Batches shrink once this share of recent uploads had network errors, and only grow while the
+     * error rate is below it
+     */
+    private static final float MAX_ERROR_RATE = 0.3f;
+
+    /**
+     * A full batch doesn't grow if its throughput fell below this share of the average, since a
+     * bigger batch isn't helping
+     */
+    private static final float MIN_THROUGHPUT_RATIO = 0.8f;
+
+    public static final long MIN_SIZE_BYTES = 1024 * 16;
+
+    public static final long MAX_SIZE_BYTES = 1024 * 1024 * 2;
+
+    public static final int MIN_COUNT = 20;
+
+    public static final int MAX_COUNT = 5000;
+
+    private final SharedPreferences mPrefs;
+
+    public AdaptiveBatchController(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param stream
+     * @return the maximum number of bytes to upload in a batch for this stream
+     */
+    public synchronized long getBatchSize(Stream stream) {
+        return mPrefs.getLong(key(stream, "size"), StreamWriterOutput.BATCH_MAX_SIZE_BYTES);
+    }
+
+    /**
+     * @param stream
+     * @return the maximum number of points to upload in a batch for this stream
+     */
+    public synchronized int getBatchCount(Stream stream) {
+        return mPrefs.getInt(key(stream, "count"), StreamWriterOutput.BATCH_MAX_COUNT);
+    }
+
+    /**
+     * Called after a batch was uploaded. If the batch was full, uploaded well under the target
+     * latency, kept up the average throughput and errors are rare, the batch size doubles. If it
+     * was slower than the target latency it is halved.
+     *
+     * @param stream
+     * @param writer        the writer which uploaded the batch
+     * @param elapsedMillis how long the upload took
+     */
+    public synchronized void onSuccess(Stream stream, StreamWriterOutput writer,
+            long elapsedMillis) {
+        boolean full = writer.getBatchBytes() >= writer.getMaxBatchSize() ||
+                       writer.getBatchCount() >= writer.getMaxBatchCount() ||
+                       writer.isBatchCutByPage();
+
+        float throughput = writer.getBatchBytes() * 1000f / Math.max(1, elapsedMillis);
+        float average = mPrefs.getFloat(key(stream, "throughput"), 0);
+        boolean keepingUp = average == 0 || throughput >= average * MIN_THROUGHPUT_RATIO;
+        float errorRate = mPrefs.getFloat(key(stream, "errors"), 0) * (1 - SMOOTHING);
+        mPrefs.edit()
+                .putFloat(key(stream, "throughput"),
+                        average == 0 ? throughput : smooth(average, throughput))
+                .putFloat(key(stream, "errors"), errorRate).apply();
+
+        if (elapsedMillis > TARGET_LATENCY_MILLIS) {
+            scale(stream, writer, 0.5);
+        } else if (full && elapsedMillis < TARGET_LATENCY_MILLIS / 2 && keepingUp
+                   && errorRate < MAX_ERROR_RATE) {
+            scale(stream, writer, 2);
+        }
+    }
+
+    /**
+     * Called after a batch failed to upload. Timeouts and network errors raise the error rate, and
+     * the batch size is halved once it is too high, so a single dropped connection doesn't shrink
+     * the batch. Other errors, such as parse errors or a 4xx response, have nothing to do with the
+     * size of the batch and leave it alone.
+     *
+     * @param stream
+     * @param writer the writer which tried to upload the batch
+     * @param error  the reason the upload failed
+     */
+    public synchronized void onFailure(Stream stream, StreamWriterOutput writer,
+            RetrofitError error) {
+        if (!error.isNetworkError())
+            return;
+
+        float errorRate = smooth(mPrefs.getFloat(key(stream, "errors"), 0), 1);
+        mPrefs.edit().putFloat(key(stream, "errors"), errorRate).apply();
+        if (errorRate >= MAX_ERROR_RATE)
+            scale(stream, writer, 0.5);
+    }
+
+    private static float smooth(float average, float sample) {
+        return average * (1 - SMOOTHING) + sample * SMOOTHING;
+    }
+
+    private void scale(Stream stream, StreamWriterOutput writer, double factor) {
+        long size = Math.max(MIN_SIZE_BYTES,
+                Math.min(MAX_SIZE_BYTES, (long) (writer.getMaxBatchSize() * factor)));
+        int count = Math.max(MIN_COUNT,
+                Math.min(MAX_COUNT, (int) (writer.getMaxBatchCount() * factor)));
+
+        writer.setBatchLimits(size, count);
+        mPrefs.edit().putLong(key(stream, "size"), size).putInt(key(stream, "count"), count)
+                .apply();
+    }
+
+    private static String key(Stream stream, String name) {
+        return stream.schemaId + ":" + stream.schemaVersion + ":" + name;
+    }
+}
@@ -17,13 +17,19 @@
 package org.ohmage.sync;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
 
+import org.ohmage.helper.IdSelectionBuilder;
+
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * A cursor that handles deletions while the data is still being read. The normal cursor will
@@ -94,7 +100,7 @@ public class DeletingCursor extends CursorWrapper {
 
     @Override
     public boolean moveToNext() {
-        if (!isAfterLast() && !isLast() && super.getPosition() + 1 > getActualCount()) {
+        if (shouldRequery()) {
             requery();
         }
         if (super.moveToNext()) {
@@ -104,6 +110,16 @@ public class DeletingCursor extends CursorWrapper {
         return false;
     }
 
+    /**
+     * Checks if the next point is past the points which still exist in the underlying cursor. In
+     * that case the cursor needs to be requeried since some points have been deleted
+     *
+     * @return true if the cursor should be requeried before moving to the next point
+     */
+    protected boolean shouldRequery() {
+        return !isAfterLast() && !isLast() && super.getPosition() + 1 > getActualCount();
+    }
+
     @Override
     public boolean moveToPrevious() {
         throw new RuntimeException("DeletingCursor can only move forwards");
@@ -146,6 +162,13 @@ public class DeletingCursor extends CursorWrapper {
         return !ids.isEmpty();
     }
 
+    /**
+     * @return the ids of the points which have been marked to be deleted
+     */
+    public List<Long> getMarked() {
+        return new ArrayList<Long>(ids);
+    }
+
     /**
      * Delete all points that have been marked so far
      *
@@ -156,30 +179,48 @@ public class DeletingCursor extends CursorWrapper {
      */
     public int deleteMarked(ContentProviderClient provider, Uri contentUri)
             throws RemoteException {
-        StringBuilder deleteString = new StringBuilder();
-
-        // Deleting this batch of points. We can only delete
-        // with a maximum expression tree depth of 1000
-        int batch = 0;
-        for (Long id : ids) {
-            if (deleteString.length() != 0)
-                deleteString.append(" OR ");
-            deleteString.append(BaseColumns._ID + "=" + id);
-            batch++;
-
-            // If we have 1000 Expressions or we are at the last
-            // point, delete them
-            if ((batch % (1000 - 2) == 0) || batch == ids.size()) {
-                provider.delete(contentUri, deleteString.toString(), null);
-                deleteString = new StringBuilder();
-            }
-        }
+        if (!ids.isEmpty())
+            delete(provider, contentUri, ids);
+
         int count = ids.size();
         mDeleted += count;
         ids.clear();
         return count;
     }
 
+    /**
+     * Deletes the points with the given ids. Consecutive ids are deleted as ranges and if more
+     * than one delete statement is needed they are applied as a single batch.
+     *
+     * @param provider
+     * @param contentUri
+     * @param ids        the ids of the points, in the order they were read
+     * @throws RemoteException
+     */
+    protected void delete(ContentProviderClient provider, Uri contentUri, List<Long> ids)
+            throws RemoteException {
+        List<String> selections = IdSelectionBuilder.build(BaseColumns._ID, ids);
+
+        if (selections.size() == 1) {
+            provider.delete(contentUri, selections.get(0), null);
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(selections.size());
+        for (String selection : selections) {
+            operations.add(ContentProviderOperation.newDelete(contentUri)
+                    .withSelection(selection, null).build());
+        }
+        try {
+            provider.applyBatch(operations);
+        } catch (OperationApplicationException e) {
+            RemoteException remoteException = new RemoteException();
+            remoteException.initCause(e);
+            throw remoteException;
+        }
+    }
+
     @Override
     @Deprecated
     public boolean requery() {
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.BaseColumns;
+
+import org.ohmage.provider.StreamContentProvider;
+
+import java.util.List;
+
+/**
+ * A {@link DeletingCursor} which holds a single page of points. Pages are queried by
+ * {@code _id > lastId LIMIT pageSize} so each page is a range scan on the primary key and the
+ * underlying cursor never has to be requeried after points are deleted. The first column of the
+ * projection must be {@link BaseColumns#_ID}.
+ */
+public class KeysetDeletingCursor extends DeletingCursor {
+
+    /**
+     * The default number of points to read for each page
+     */
+    public static final int DEFAULT_PAGE_SIZE = 2000;
+
+    private final Uri mUri;
+
+    private final String[] mProjection;
+
+    private final String mSelection;
+
+    private final String[] mSelectionArgs;
+
+    private final int mPageSize;
+
+    /**
+     * The id of the last point this cursor moved to
+     */
+    private long mLastId;
+
+    private KeysetDeletingCursor(Cursor c, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, long afterId, int pageSize) {
+        super(c);
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPageSize = pageSize;
+        mLastId = afterId;
+    }
+
+    /**
+     * Queries for the page of points which come after the given id
+     *
+     * @param provider      the provider to query
+     * @param uri           the uri to query
+     * @param projection    the projection. The first column must be {@link BaseColumns#_ID}
+     * @param selection     the selection, not including the id restriction
+     * @param selectionArgs the selection args
+     * @param afterId       only points with an id larger than this will be returned
+     * @param pageSize      the maximum number of points in the page
+     * @return the page of points, or null if the provider returned no cursor
+     * @throws RemoteException
+     */
+    public static KeysetDeletingCursor query(ContentProviderClient provider, Uri uri,
+            String[] projection, String selection, String[] selectionArgs, long afterId,
+            int pageSize) throws RemoteException {
+        String[] args = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        args[selectionArgs.length] = String.valueOf(afterId);
+
+        Cursor c = provider.query(pageUri(uri, pageSize), projection,
+                selection + " AND " + BaseColumns._ID + ">?", args, BaseColumns._ID);
+        if (c == null)
+            return null;
+        return new KeysetDeletingCursor(c, uri, projection, selection, selectionArgs, afterId,
+                pageSize);
+    }
+
+    /**
+     * Builds the uri used to query for a single page of points
+     *
+     * @param uri
+     * @param pageSize
+     * @return the uri with the limit parameter appended
+     */
+    public static Uri pageUri(Uri uri, int pageSize) {
+        return uri.buildUpon().appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_LIMIT,
+                String.valueOf(pageSize)).build();
+    }
+
+    /**
+     * Check if there might be more points after this page
+     *
+     * @return true if this page was full
+     */
+    public boolean hasNextPage() {
+        return getCount() >= mPageSize;
+    }
+
+    /**
+     * Queries for the page of points after the last point this cursor moved to
+     *
+     * @param provider
+     * @return the next page
+     * @throws RemoteException
+     */
+    public KeysetDeletingCursor nextPage(ContentProviderClient provider) throws RemoteException {
+        return nextPage(provider, mPageSize);
+    }
+
+    /**
+     * Queries for a page of the given size after the last point this cursor moved to
+     *
+     * @param provider
+     * @param pageSize the maximum number of points in the next page
+     * @return the next page
+     * @throws RemoteException
+     */
+    public KeysetDeletingCursor nextPage(ContentProviderClient provider, int pageSize)
+            throws RemoteException {
+        return query(provider, mUri, mProjection, mSelection, mSelectionArgs, mLastId, pageSize);
+    }
+
+    /**
+     * The page is ordered by id, so the points which were read since the last delete are exactly
+     * the points for this selection between the first and last id. They are deleted as one range.
+     */
+    @Override
+    protected void delete(ContentProviderClient provider, Uri contentUri, List<Long> ids)
+            throws RemoteException {
+        String[] args = new String[mSelectionArgs.length + 2];
+        System.arraycopy(mSelectionArgs, 0, args, 0, mSelectionArgs.length);
+        args[mSelectionArgs.length] = String.valueOf(ids.get(0));
+        args[mSelectionArgs.length + 1] = String.valueOf(ids.get(ids.size() - 1));
+
+        provider.delete(contentUri,
+                mSelection + " AND " + BaseColumns._ID + " BETWEEN ? AND ?", args);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (super.moveToNext()) {
+            mLastId = getLong(0);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The page holds a fixed range of points so it doesn't need to be requeried after they are
+     * deleted
+     */
+    @Override
+    protected boolean shouldRequery() {
+        return false;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.RemoteException;
+import android.util.Log;
+
+import org.apache.http.auth.AuthenticationException;
+import org.ohmage.provider.ResponseContract.ResponseMedia;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import retrofit.RetrofitError;
+
+/**
+ * The second phase of the response sync. Responses are uploaded without their media, which is
+ * queued in {@link ResponseMedia} and uploaded separately by this queue once the device is on
+ * Wi-Fi and charging. Media is uploaded in resumable chunks by a {@link MediaUploader}.
+ */
+public class MediaUploadQueue {
+
+    private static final String TAG = "MediaUploadQueue";
+
+    private static final String[] PROJECTION = new String[]{
+            ResponseMedia._ID, ResponseMedia.SURVEY_ID, ResponseMedia.SURVEY_VERSION,
+            ResponseMedia.MEDIA_ID, ResponseMedia.MEDIA_PATH, ResponseMedia.ATTEMPTS
+    };
+
+    private final MediaUploader mUploader;
+
+    private final int mMaxParallelUploads;
+
+    private final int mMaxAttempts;
+
+    /**
+     * @param uploader           uploads each file
+     * @param maxParallelUploads the maximum number of files uploaded at the same time
+     * @param maxAttempts        the number of times the server can reject a file before it is
+     *                           dropped
+     */
+    public MediaUploadQueue(MediaUploader uploader, int maxParallelUploads, int maxAttempts) {
+        mUploader = uploader;
+        mMaxParallelUploads = Math.max(1, maxParallelUploads);
+        mMaxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Creates the operations which queue the media of an uploaded response
+     *
+     * @param surveyId
+     * @param surveyVersion
+     * @param files         the media of the response
+     * @return the insert operations
+     */
+    public static ArrayList<ContentProviderOperation> enqueue(String surveyId,
+            long surveyVersion, ResponseFiles files) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(files.size());
+        for (String id : files.getIds()) {
+            operations.add(ContentProviderOperation.newInsert(
+                    ResponseSyncAdapter.appendSyncAdapterParam(ResponseMedia.CONTENT_URI))
+                    .withValue(ResponseMedia.SURVEY_ID, surveyId)
+                    .withValue(ResponseMedia.SURVEY_VERSION, surveyVersion)
+                    .withValue(ResponseMedia.MEDIA_ID, id)
+                    .withValue(ResponseMedia.MEDIA_PATH, files.get(id)).build());
+        }
+        return operations;
+    }
+
+    /**
+     * Checks if the device is in a state where media should be uploaded
+     *
+     * @param context
+     * @param requireWifi     true if media is only uploaded on Wi-Fi
+     * @param requireCharging true if media is only uploaded while charging
+     * @return true if media can be uploaded now
+     */
+    public static boolean canUpload(Context context, boolean requireWifi,
+            boolean requireCharging) {
+        if (requireWifi) {
+            ConnectivityManager cm =
+                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = cm.getActiveNetworkInfo();
+            if (network == null || !network.isConnected()
+                || network.getType() != ConnectivityManager.TYPE_WIFI)
+                return false;
+        }
+        if (requireCharging) {
+            Intent battery = context.registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Uploads all of the queued media. Each file is deleted along with its row once it is
+     * uploaded. Files which are missing, or which the server rejected too many times, are dropped
+     * and counted as skipped.
+     * <p/>
+     * Only the network calls run on the upload threads. The provider is only used from the calling
+     * thread since a {@link ContentProviderClient} shouldn't be shared between threads.
+     *
+     * @param provider
+     * @param syncResult updated with the results
+     * @throws RemoteException
+     */
+    public void uploadAll(ContentProviderClient provider, SyncResult syncResult)
+            throws RemoteException {
+        Cursor cursor = provider.query(ResponseMedia.CONTENT_URI, PROJECTION, null, null,
+                ResponseMedia._ID);
+        if (cursor == null)
+            return;
+
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(mMaxParallelUploads);
+        CompletionService<Upload> uploads = new ExecutorCompletionService<Upload>(executor);
+        int submitted = 0;
+        try {
+            while (cursor.moveToNext()) {
+                final Upload upload = new Upload(cursor.getLong(0), cursor.getString(1),
+                        cursor.getLong(2), cursor.getString(3), new File(cursor.getString(4)),
+                        cursor.getInt(5));
+                uploads.submit(new Callable<Upload>() {
+                    @Override public Upload call() {
+                        if (!cancelled.get())
+                            upload(upload, cancelled);
+                        return upload;
+                    }
+                });
+                submitted++;
+            }
+        } finally {
+            cursor.close();
+        }
+        executor.shutdown();
+
+        try {
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    finish(provider, syncResult, uploads.take().get());
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Error uploading media", e.getCause());
+                    syncResult.stats.numSkippedEntries++;
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } catch (RemoteException e) {
+            syncResult.databaseError = true;
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Uploads the file and sets the result. Runs on an upload thread.
+     */
+    private void upload(Upload upload, AtomicBoolean cancelled) {
+        if (!upload.file.exists()) {
+            upload.result = Upload.MISSING;
+            return;
+        }
+        try {
+            mUploader.upload(upload.surveyId, upload.surveyVersion, upload.mediaId, upload.file);
+            upload.result = Upload.UPLOADED;
+        } catch (AuthenticationException e) {
+            upload.result = Upload.AUTH_ERROR;
+            cancelled.set(true);
+        } catch (RetrofitError e) {
+            upload.error = e;
+            upload.result = e.getCause() instanceof IOException ? Upload.IO_ERROR
+                    : Upload.REJECTED;
+        }
+    }
+
+    /**
+     * Updates the queue and the sync result for a finished upload. Runs on the sync thread.
+     */
+    private void finish(ContentProviderClient provider, SyncResult syncResult, Upload upload)
+            throws RemoteException {
+        switch (upload.result) {
+            case Upload.UPLOADED:
+                drop(provider, upload);
+                syncResult.stats.numEntries++;
+                break;
+            case Upload.MISSING:
+                Log.w(TAG, "Dropping missing media " + upload.file);
+                drop(provider, upload);
+                syncResult.stats.numSkippedEntries++;
+                break;
+            case Upload.REJECTED:
+                // The server rejected the file so it will probably be rejected again
+                if (upload.attempts + 1 >= mMaxAttempts) {
+                    Log.w(TAG, "Dropping media " + upload.file + " after "
+                               + (upload.attempts + 1) + " attempts", upload.error);
+                    drop(provider, upload);
+                } else {
+                    ContentValues values = new ContentValues();
+                    values.put(ResponseMedia.ATTEMPTS, upload.attempts + 1);
+                    provider.update(
+                            ResponseSyncAdapter.appendSyncAdapterParam(ResponseMedia.CONTENT_URI),
+                            values, ResponseMedia._ID + "=?",
+                            new String[]{String.valueOf(upload.id)});
+                }
+                syncResult.stats.numSkippedEntries++;
+                break;
+            case Upload.IO_ERROR:
+                syncResult.stats.numIoExceptions++;
+                break;
+            case Upload.AUTH_ERROR:
+                syncResult.stats.numAuthExceptions++;
+                break;
+        }
+    }
+
+    /**
+     * Removes the media from the queue and deletes the file
+     */
+    private void drop(ContentProviderClient provider, Upload upload) throws RemoteException {
+        provider.delete(ResponseSyncAdapter.appendSyncAdapterParam(ResponseMedia.CONTENT_URI),
+                ResponseMedia._ID + "=?", new String[]{String.valueOf(upload.id)});
+        mUploader.forget(upload.mediaId);
+        upload.file.delete();
+    }
+
+    /**
+     * A queued file and the result of uploading it
+     */
+    private static class Upload {
+
+        static final int NOT_STARTED = 0;
+
+        static final int UPLOADED = 1;
+
+        static final int MISSING = 2;
+
+        static final int REJECTED = 3;
+
+        static final int IO_ERROR = 4;
+
+        static final int AUTH_ERROR = 5;
+
+        final long id;
+
+        final String surveyId;
+
+        final long surveyVersion;
+
+        final String mediaId;
+
+        final File file;
+
+        final int attempts;
+
+        volatile int result = NOT_STARTED;
+
+        volatile RetrofitError error;
+
+        Upload(long id, String surveyId, long surveyVersion, String mediaId, File file,
+                int attempts) {
+            this.id = id;
+            this.surveyId = surveyId;
+            this.surveyVersion = surveyVersion;
+            this.mediaId = mediaId;
+            this.file = file;
+            this.attempts = attempts;
+        }
+    }
+}
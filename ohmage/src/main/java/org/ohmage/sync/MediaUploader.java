@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.apache.http.auth.AuthenticationException;
+import org.ohmage.app.OhmageService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+import retrofit.client.Response;
+import retrofit.mime.TypedOutput;
+
+/**
+ * Uploads the media for a response in chunks. Each chunk is sent with a {@code Content-Range}
+ * header and the server replies with a {@code Range} header saying how many bytes it has. The
+ * acknowledged offset is saved after every chunk, so an upload which is interrupted by a network
+ * error or by the process dying continues from where it stopped instead of from the start.
+ */
+public class MediaUploader {
+
+    private static final String PREFS_NAME = "media_upload_offsets";
+
+    private final SharedPreferences mPrefs;
+
+    private final OhmageService mService;
+
+    private final int mChunkSize;
+
+    /**
+     * @param context
+     * @param service
+     * @param chunkSize the maximum number of bytes sent in one request
+     */
+    public MediaUploader(Context context, OhmageService service, int chunkSize) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mService = service;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Uploads the part of the file the server doesn't have yet. The saved offset only moves
+     * forward when the server acknowledges bytes with a {@code Range} header, or accepts the last
+     * chunk. If the server doesn't say what it has, it is asked with a status query before anything
+     * else is sent.
+     *
+     * @param surveyId
+     * @param surveyVersion
+     * @param mediaId       the id of the media in the response
+     * @param file
+     * @throws AuthenticationException
+     * @throws RetrofitError           thrown if a chunk fails to upload. The chunks which were
+     *                                 acknowledged before it are not sent again.
+     */
+    public void upload(String surveyId, long surveyVersion, String mediaId, File file)
+            throws AuthenticationException, RetrofitError {
+        long total = file.length();
+        long offset = Math.min(mPrefs.getLong(mediaId, 0), total);
+
+        do {
+            long length = Math.min(mChunkSize, total - offset);
+            String range = length == 0 ? statusRange(total) :
+                    "bytes " + offset + "-" + (offset + length - 1) + "/" + total;
+            Response response = mService.uploadMediaChunk(surveyId, surveyVersion, mediaId, range,
+                    new FileChunk(file, offset, length));
+
+            long acked = ackedOffset(response);
+            if (acked == -1 && offset + length == total && isSuccessful(response)) {
+                // The server accepted the last chunk so it has the whole file
+                acked = total;
+            } else if (acked == -1 && length != 0) {
+                response = mService.uploadMediaChunk(surveyId, surveyVersion, mediaId,
+                        statusRange(total), new FileChunk(file, total, 0));
+                acked = ackedOffset(response);
+            }
+            if (acked == -1)
+                throw RetrofitError.networkError(mediaId,
+                        new IOException("Server did not acknowledge the chunk at " + offset));
+            if (acked <= offset && length != 0) {
+                // Resume from what the server really has next time
+                mPrefs.edit().putLong(mediaId, acked).commit();
+                throw RetrofitError.networkError(mediaId,
+                        new IOException("Server did not accept the chunk at " + offset));
+            }
+            offset = Math.min(acked, total);
+            mPrefs.edit().putLong(mediaId, offset).commit();
+        } while (offset < total);
+    }
+
+    /**
+     * Forgets the offset for media once the response it belongs to was uploaded
+     *
+     * @param mediaId
+     */
+    public void forget(String mediaId) {
+        mPrefs.edit().remove(mediaId).apply();
+    }
+
+    /**
+     * Forgets the offsets of all media, for when the media is deleted
+     *
+     * @param context
+     */
+    public static void forgetAll(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    /**
+     * Reads the number of bytes the server has from a {@code Range: bytes=0-N} header
+     *
+     * @param response
+     * @return the offset of the next byte the server needs, or -1 if the server didn't send a
+     * range
+     */
+    static long ackedOffset(Response response) {
+        if (response == null || response.getHeaders() == null)
+            return -1;
+
+        for (Header header : response.getHeaders()) {
+            if (!"Range".equalsIgnoreCase(header.getName()) || header.getValue() == null)
+                continue;
+            int dash = header.getValue().lastIndexOf('-');
+            if (dash == -1)
+                continue;
+            try {
+                return Long.parseLong(header.getValue().substring(dash + 1).trim()) + 1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSuccessful(Response response) {
+        return response != null && response.getStatus() >= 200 && response.getStatus() < 300;
+    }
+
+    /**
+     * @return the range which asks the server how many bytes it has without sending any
+     */
+    private static String statusRange(long total) {
+        return "bytes */" + total;
+    }
+
+    /**
+     * A range of bytes from a file
+     */
+    static class FileChunk implements TypedOutput {
+
+        private final File mFile;
+
+        private final long mOffset;
+
+        private final long mLength;
+
+        FileChunk(File file, long offset, long length) {
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override public String fileName() {
+            return mFile.getName();
+        }
+
+        @Override public String mimeType() {
+            return "application/octet-stream";
+        }
+
+        @Override public long length() {
+            return mLength;
+        }
+
+        @Override public void writeTo(OutputStream out) throws IOException {
+            RandomAccessFile in = new RandomAccessFile(mFile, "r");
+            try {
+                in.seek(mOffset);
+                byte[] buffer = new byte[8192];
+                long remaining = mLength;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1)
+                        throw new IOException("File ended before the chunk was written");
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -24,10 +24,11 @@ import android.annotation.TargetApi;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
-import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
@@ -37,25 +38,24 @@ import android.provider.BaseColumns;
 
 import com.google.gson.Gson;
 
-import org.apache.http.auth.AuthenticationException;
 import org.ohmage.app.Ohmage;
 import org.ohmage.app.OhmageService;
+import org.ohmage.app.R;
 import org.ohmage.auth.AuthUtil;
+import org.ohmage.helper.IdSelectionBuilder;
+import org.ohmage.helper.IdempotencyIds;
+import org.ohmage.provider.ResponseContentProvider;
 import org.ohmage.provider.ResponseContract;
 import org.ohmage.provider.ResponseContract.Responses;
 import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+import org.ohmage.sync.ResponseUploadEngine.Upload;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Inject;
 
-import retrofit.client.Response;
-import rx.Observable;
-import rx.Subscriber;
-import rx.util.functions.Action1;
-import rx.util.functions.Func1;
-
 /**
  * Handle the transfer of data between a server the ohmage app using the Android sync adapter
  * framework.
@@ -72,6 +72,10 @@ public class ResponseSyncAdapter extends AbstractThreadedSyncAdapter {
 
     private static final String TAG = ResponseSyncAdapter.class.getSimpleName();
 
+    private static final String[] PROJECTION = new String[]{BaseColumns._ID, Responses.SURVEY_ID,
+            Responses.SURVEY_VERSION, Responses.RESPONSE_DATA, Responses.RESPONSE_METADATA,
+            Responses.RESPONSE_EXTRAS};
+
     /**
      * Set up the sync adapter
      */
@@ -114,122 +118,148 @@ public class ResponseSyncAdapter extends AbstractThreadedSyncAdapter {
             syncResult.stats.numIoExceptions > 0 || syncResult.stats.numAuthExceptions > 0)
             return;
 
-        // Upload responses
-        Observable<Long> toDelete = null;
-        Observable<ResponseFiles> filesToDelete = null;
-
-        Cursor cursor = null;
-
-        try {
-            cursor = provider.query(Responses.CONTENT_URI,
-                    new String[]{BaseColumns._ID, Responses.SURVEY_ID, Responses.SURVEY_VERSION,
-                            Responses.RESPONSE_DATA, Responses.RESPONSE_METADATA,
-                            Responses.RESPONSE_EXTRAS}, null, null, null);
-
-            while (cursor.moveToNext()) {
-                final ResponseFiles files = gson.fromJson(cursor.getString(5), ResponseFiles.class);
-                try {
-                    // Make the call to upload responses
-                    Observable<Response> uploadResponse =
-                            ohmageService.uploadResponse(cursor.getString(1), cursor.getLong(2),
-                                    new ResponseTypedOutput(cursor.getString(3),
-                                            cursor.getString(4), files)).cache();
-
-                    // Map the data for the upload response to the local id in the db
-                    final long localResponseId = cursor.getLong(0);
-                    Observable<Long> responseId = uploadResponse.map(new Func1<Response, Long>() {
-                        @Override public Long call(Response response) {
-                            return localResponseId;
-                        }
-                    });
-
-                    if(toDelete == null) {
-                        toDelete = responseId;
-                    } else {
-                        toDelete = Observable.mergeDelayError(responseId, toDelete);
-                    }
-
-                    // Map the data for the upload response to the files in the db
-                    Observable<ResponseFiles> responseFiles = uploadResponse.map(new Func1<Response, ResponseFiles>() {
-                        @Override public ResponseFiles call(Response response) {
-                            return files;
-                        }
-                    });
-
-                    if(filesToDelete == null) {
-                        filesToDelete = responseFiles;
-                    } else {
-                        filesToDelete = Observable.mergeDelayError(responseFiles, filesToDelete);
-                    }
-                } catch (AuthenticationException e) {
-                    syncResult.stats.numAuthExceptions++;
+        // Upload responses a page at a time so only one page is held in memory
+        Resources res = getContext().getResources();
+        boolean deferMedia = res.getBoolean(R.bool.defer_response_media);
+        int pageSize = res.getInteger(R.integer.response_sync_page_size);
+        Uri page = Responses.CONTENT_URI.buildUpon().appendQueryParameter(
+                ResponseContentProvider.QUERY_PARAMETER_LIMIT, String.valueOf(pageSize)).build();
+        long lastId = 0;
+        boolean more = true;
+
+        while (more) {
+            ResponseUploadEngine engine = new ResponseUploadEngine(ohmageService, syncResult,
+                    res.getBoolean(R.bool.compress_uploads),
+                    res.getInteger(R.integer.max_parallel_response_uploads),
+                    res.getInteger(R.integer.response_upload_max_attempts));
+            engine.setDeferMedia(deferMedia);
+            if (res.getBoolean(R.bool.resumable_media_uploads))
+                engine.setMediaUploader(mediaUploader(res));
+
+            int read = 0;
+            Cursor cursor = null;
+            try {
+                cursor = provider.query(page, PROJECTION, BaseColumns._ID + ">?",
+                        new String[]{String.valueOf(lastId)}, BaseColumns._ID);
+
+                while (cursor.moveToNext()) {
+                    read++;
+                    lastId = cursor.getLong(0);
+                    ResponseFiles files =
+                            gson.fromJson(cursor.getString(5), ResponseFiles.class);
+                    String metadata = saveId(provider, lastId, cursor.getString(4));
+                    if (!engine.submit(new Upload(lastId, cursor.getString(1),
+                            cursor.getLong(2), cursor.getString(3), metadata, files)))
+                        break;
                 }
+                more = read == pageSize;
+            } catch (RemoteException e) {
+                syncResult.stats.numIoExceptions++;
+                more = false;
+            } catch (InterruptedException e) {
+                // The sync was cancelled. Still delete what was uploaded.
+                Thread.currentThread().interrupt();
+                more = false;
+            } finally {
+                if (cursor != null)
+                    cursor.close();
             }
-            cursor.close();
-
 
+            List<Upload> uploaded;
+            try {
+                uploaded = engine.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
 
-        } catch (RemoteException e) {
-            syncResult.stats.numIoExceptions++;
-        } finally {
-            if (cursor != null)
-                cursor.close();
+            if (!removeUploaded(uploaded, deferMedia, syncResult))
+                return;
+            if (engine.isCancelled())
+                more = false;
         }
 
-        if(toDelete != null) {
-            toDelete.flatMap(new Func1<Long, Observable<ContentProviderOperation>>() {
-                @Override public Observable<ContentProviderOperation> call(Long aLong) {
-                    return Observable.from(ContentProviderOperation.newDelete(appendSyncAdapterParam(
-                            ContentUris.withAppendedId(Responses.CONTENT_URI, aLong))).build());
-                }
-            }).subscribe(new Subscriber<ContentProviderOperation>() {
-                ArrayList<ContentProviderOperation> toDelete =
-                        new ArrayList<ContentProviderOperation>();
-
-                @Override public void onCompleted() {
-                    try {
-                        getContext().getContentResolver()
-                                .applyBatch(ResponseContract.CONTENT_AUTHORITY, toDelete);
-                    } catch (RemoteException e) {
-                        syncResult.stats.numIoExceptions++;
-                    } catch (OperationApplicationException e) {
-                        syncResult.stats.numIoExceptions++;
-                    }
-                    unsubscribe();
-                }
-
-                @Override public void onError(Throwable e) {
-                    // Delete the successful ones
-                    onCompleted();
-                }
-
-                @Override public void onNext(ContentProviderOperation args) {
-                    toDelete.add(args);
-                }
-            });
+        // Upload the queued media if the device is on wifi and charging
+        if (syncResult.stats.numAuthExceptions == 0
+            && MediaUploadQueue.canUpload(getContext(),
+                res.getBoolean(R.bool.media_upload_requires_wifi),
+                res.getBoolean(R.bool.media_upload_requires_charging))) {
+            MediaUploadQueue media = new MediaUploadQueue(mediaUploader(res),
+                    res.getInteger(R.integer.max_parallel_media_uploads),
+                    res.getInteger(R.integer.media_upload_max_attempts));
+            try {
+                media.uploadAll(provider, syncResult);
+            } catch (RemoteException e) {
+                syncResult.stats.numIoExceptions++;
+            }
         }
+    }
 
-        if(filesToDelete != null) {
-            filesToDelete.doOnNext(new Action1<ResponseFiles>() {
-                @Override public void call(ResponseFiles responseFiles) {
-                    for (String s : responseFiles.getIds()) {
-                        responseFiles.getFile(s).delete();
-                    }
-                }
-            }).subscribe(new Subscriber<ResponseFiles>() {
-                @Override public void onCompleted() {
-                    unsubscribe();
-                }
-
-                @Override public void onError(Throwable e) {
-
-                }
+    /**
+     * Gives a response which was saved without an id one, and stores it before the response is
+     * uploaded so every attempt sends the same id
+     *
+     * @return the metadata with an id
+     */
+    private static String saveId(ContentProviderClient provider, long id, String metadata)
+            throws RemoteException {
+        String withId = IdempotencyIds.ensureId(metadata);
+        if (!withId.equals(metadata)) {
+            ContentValues values = new ContentValues();
+            values.put(Responses.RESPONSE_METADATA, withId);
+            provider.update(appendSyncAdapterParam(Responses.CONTENT_URI), values,
+                    BaseColumns._ID + "=?", new String[]{String.valueOf(id)});
+        }
+        return withId;
+    }
 
-                @Override public void onNext(ResponseFiles responseFiles) {
+    /**
+     * Deletes the uploaded responses in one batch, and queues their media if it was left out
+     *
+     * @return false if the responses couldn't be deleted
+     */
+    private boolean removeUploaded(List<Upload> uploaded, boolean deferMedia,
+            SyncResult syncResult) {
+        if (uploaded.isEmpty())
+            return true;
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<Long> ids = new ArrayList<Long>(uploaded.size());
+        for (Upload upload : uploaded) {
+            if (deferMedia)
+                operations.addAll(MediaUploadQueue.enqueue(upload.surveyId,
+                        upload.surveyVersion, upload.files));
+            ids.add(upload.id);
+        }
+        Uri responses = appendSyncAdapterParam(Responses.CONTENT_URI);
+        for (String selection : IdSelectionBuilder.build(BaseColumns._ID, ids)) {
+            operations.add(ContentProviderOperation.newDelete(responses)
+                    .withSelection(selection, null).build());
+        }
+        try {
+            getContext().getContentResolver()
+                    .applyBatch(ResponseContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (OperationApplicationException e) {
+            syncResult.stats.numIoExceptions++;
+            return false;
+        }
 
+        if (!deferMedia) {
+            for (Upload upload : uploaded) {
+                for (String s : upload.files.getIds()) {
+                    upload.files.getFile(s).delete();
                 }
-            });
+            }
         }
+        return true;
+    }
+
+    private MediaUploader mediaUploader(Resources res) {
+        return new MediaUploader(getContext(), ohmageService,
+                res.getInteger(R.integer.media_upload_chunk_size));
     }
 
     public static Uri appendSyncAdapterParam(Uri uri) {
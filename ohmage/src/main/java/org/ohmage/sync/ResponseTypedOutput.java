@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import retrofit.mime.MultipartTypedOutput;
 import retrofit.mime.TypedByteArray;
@@ -33,6 +34,8 @@ public class ResponseTypedOutput implements TypedOutput {
 
     private final MultipartTypedOutput mMulitpartType;
 
+    private boolean mCompressed;
+
     private static final String sDataFormatter = "[{\"data\":%s,\"meta_data\":%s}]";
 
     /**
@@ -59,6 +62,23 @@ public class ResponseTypedOutput implements TypedOutput {
         }
     }
 
+    /**
+     * Compress the whole multipart body with gzip as it is written. The server must accept gzip
+     * encoded request bodies.
+     *
+     * @param compressed
+     */
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed;
+    }
+
+    /**
+     * @return the value of the Content-Encoding header for the body, or null if it is not encoded
+     */
+    public String contentEncoding() {
+        return mCompressed ? "gzip" : null;
+    }
+
     @Override public String fileName() {
         return mMulitpartType.fileName();
     }
@@ -68,10 +88,17 @@ public class ResponseTypedOutput implements TypedOutput {
     }
 
     @Override public long length() {
-        return mMulitpartType.length();
+        // The compressed length isn't known until it is written
+        return mCompressed ? -1 : mMulitpartType.length();
     }
 
     @Override public void writeTo(OutputStream out) throws IOException {
-        mMulitpartType.writeTo(out);
+        if (mCompressed) {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            mMulitpartType.writeTo(gzip);
+            gzip.finish();
+        } else {
+            mMulitpartType.writeTo(out);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.SyncResult;
+import android.util.Log;
+
+import org.apache.http.auth.AuthenticationException;
+import org.ohmage.app.OhmageService;
+import org.ohmage.helper.IdempotencyIds;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import retrofit.RetrofitError;
+import retrofit.converter.ConversionException;
+
+/**
+ * Uploads responses with a limited number of requests in flight. Responses are taken from a
+ * single queue in the order they were submitted and {@link #submit(Upload)} blocks while the
+ * queue is full, so only a bounded number of responses are held in memory. Network errors and
+ * server errors are retried with backoff. A retry may send a response the server already stored,
+ * so every response carries an id in its metadata which the server uses to ignore duplicates.
+ * The outcome of each upload is counted in the {@link SyncResult}.
+ */
+public class ResponseUploadEngine {
+
+    private static final String TAG = "ResponseUploadEngine";
+
+    /**
+     * The delay before the first retry. It doubles for each retry after that.
+     */
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    /**
+     * A response to upload
+     */
+    public static class Upload {
+        public final long id;
+
+        public final String surveyId;
+
+        public final long surveyVersion;
+
+        public final String data;
+
+        public final String metadata;
+
+        public final ResponseFiles files;
+
+        int attempts;
+
+        public Upload(long id, String surveyId, long surveyVersion, String data, String metadata,
+                ResponseFiles files) {
+            this.id = id;
+            this.surveyId = surveyId;
+            this.surveyVersion = surveyVersion;
+            this.data = data;
+            this.metadata = IdempotencyIds.ensureId(metadata);
+            this.files = files != null ? files : new ResponseFiles();
+        }
+    }
+
+    private final OhmageService mService;
+
+    private final SyncResult mSyncResult;
+
+    private final boolean mCompress;
+
+    private final int mMaxAttempts;
+
+    private final ExecutorService mExecutor;
+
+    private MediaUploader mMediaUploader;
+
+    private boolean mDeferMedia;
+
+    /**
+     * Limits the number of responses which are waiting or uploading
+     */
+    private final Semaphore mQueued;
+
+    private final List<Upload> mUploaded = new ArrayList<Upload>();
+
+    /**
+     * Set after an auth error, since every other upload would fail too, or if an upload is
+     * interrupted
+     */
+    private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+    /**
+     * @param service     the service used to upload
+     * @param syncResult  updated with the results. Synchronized on while it is updated.
+     * @param compress    true to gzip the responses
+     * @param maxInFlight the maximum number of uploads at the same time
+     * @param maxAttempts the number of times an upload is tried before it is skipped
+     */
+    public ResponseUploadEngine(OhmageService service, SyncResult syncResult, boolean compress,
+            int maxInFlight, int maxAttempts) {
+        mService = service;
+        mSyncResult = syncResult;
+        mCompress = compress;
+        mMaxAttempts = Math.max(1, maxAttempts);
+        maxInFlight = Math.max(1, maxInFlight);
+        mExecutor = Executors.newFixedThreadPool(maxInFlight);
+        mQueued = new Semaphore(maxInFlight * 2);
+    }
+
+    /**
+     * Upload media in resumable chunks before each response instead of as part of it. Must be
+     * called before any responses are submitted.
+     *
+     * @param mediaUploader the uploader for media, or null to send media with the response
+     */
+    public void setMediaUploader(MediaUploader mediaUploader) {
+        mMediaUploader = mediaUploader;
+    }
+
+    /**
+     * Upload responses without their media. The media is left for the caller to upload later.
+     * Must be called before any responses are submitted.
+     *
+     * @param deferMedia
+     */
+    public void setDeferMedia(boolean deferMedia) {
+        mDeferMedia = deferMedia;
+    }
+
+    /**
+     * Queues a response to be uploaded. Blocks while the queue is full.
+     *
+     * @param upload
+     * @return false if the engine was cancelled and the response won't be uploaded
+     * @throws InterruptedException
+     */
+    public boolean submit(final Upload upload) throws InterruptedException {
+        if (mCancelled.get())
+            return false;
+
+        mQueued.acquire();
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    if (!mCancelled.get())
+                        upload(upload);
+                } finally {
+                    mQueued.release();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits for every queued upload to finish
+     *
+     * @return the responses which were uploaded
+     * @throws InterruptedException
+     */
+    public List<Upload> finish() throws InterruptedException {
+        mExecutor.shutdown();
+        try {
+            while (!mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Log.d(TAG, "Waiting for responses to finish uploading");
+            }
+        } catch (InterruptedException e) {
+            mCancelled.set(true);
+            mExecutor.shutdownNow();
+            throw e;
+        }
+        synchronized (mUploaded) {
+            return new ArrayList<Upload>(mUploaded);
+        }
+    }
+
+    /**
+     * @return true if uploads stopped because of an auth error or an interruption
+     */
+    public boolean isCancelled() {
+        return mCancelled.get();
+    }
+
+    private void upload(Upload upload) {
+        while (true) {
+            upload.attempts++;
+            try {
+                send(upload);
+                if (mMediaUploader != null && !mDeferMedia) {
+                    for (String id : upload.files.getIds()) {
+                        mMediaUploader.forget(id);
+                    }
+                }
+                synchronized (mUploaded) {
+                    mUploaded.add(upload);
+                }
+                synchronized (mSyncResult) {
+                    mSyncResult.stats.numEntries++;
+                }
+                return;
+            } catch (AuthenticationException e) {
+                mCancelled.set(true);
+                synchronized (mSyncResult) {
+                    mSyncResult.stats.numAuthExceptions++;
+                }
+                return;
+            } catch (RetrofitError e) {
+                if (!shouldRetry(e) || upload.attempts >= mMaxAttempts) {
+                    recordError(e);
+                    return;
+                }
+                Log.w(TAG, "Retrying response " + upload.id + " after attempt " + upload.attempts);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to upload response " + upload.id, e);
+                synchronized (mSyncResult) {
+                    mSyncResult.stats.numSkippedEntries++;
+                }
+                return;
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS << (upload.attempts - 1));
+            } catch (InterruptedException e) {
+                // The sync is being cancelled. The response will be tried again next sync.
+                mCancelled.set(true);
+                synchronized (mSyncResult) {
+                    mSyncResult.stats.numIoExceptions++;
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void send(Upload upload) throws AuthenticationException {
+        ResponseFiles files = upload.files;
+        if (mDeferMedia) {
+            files = new ResponseFiles();
+        } else if (mMediaUploader != null) {
+            for (String id : files.getIds()) {
+                mMediaUploader.upload(upload.surveyId, upload.surveyVersion, id,
+                        files.getFile(id));
+            }
+            files = new ResponseFiles();
+        }
+
+        ResponseTypedOutput output = new ResponseTypedOutput(upload.data, upload.metadata,
+                files);
+        output.setCompressed(mCompress);
+        try {
+            (mCompress ?
+                    mService.uploadResponse(upload.surveyId, upload.surveyVersion,
+                            output.contentEncoding(), output) :
+                    mService.uploadResponse(upload.surveyId, upload.surveyVersion, output))
+                    .toBlockingObservable().single();
+        } catch (RuntimeException e) {
+            // Checked errors from the error handler are wrapped by the blocking observable
+            Throwable cause = e instanceof RetrofitError ? e : e.getCause();
+            if (cause instanceof AuthenticationException)
+                throw (AuthenticationException) cause;
+            if (cause instanceof RetrofitError)
+                throw (RetrofitError) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Network errors and server errors might succeed if they are tried again
+     */
+    private static boolean shouldRetry(RetrofitError e) {
+        if (e.isNetworkError())
+            return true;
+        return e.getResponse() != null && e.getResponse().getStatus() >= 500;
+    }
+
+    private void recordError(RetrofitError e) {
+        synchronized (mSyncResult) {
+            if (e.getCause() instanceof IOException) {
+                mSyncResult.stats.numIoExceptions++;
+            } else if (e.getCause() instanceof ConversionException) {
+                mSyncResult.stats.numParseExceptions++;
+            } else {
+                mSyncResult.stats.numSkippedEntries++;
+            }
+        }
+    }
+}
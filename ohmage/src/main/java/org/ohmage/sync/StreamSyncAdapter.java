@@ -26,17 +26,23 @@ import android.content.SyncResult;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.apache.http.auth.AuthenticationException;
 import org.ohmage.app.Ohmage;
 import org.ohmage.app.OhmageService;
+import org.ohmage.app.R;
 import org.ohmage.auth.AuthUtil;
 import org.ohmage.auth.Authenticator;
 import org.ohmage.models.Stream;
 import org.ohmage.models.Streams;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 
@@ -66,6 +72,31 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
      */
     public static final String EXTRA_STREAM_VERSION = "extra_stream_version";
 
+    /**
+     * The maximum number of streams to upload at the same time. Defaults to
+     * {@link R.integer#max_parallel_stream_uploads}
+     */
+    public static final String EXTRA_MAX_PARALLEL_UPLOADS = "extra_max_parallel_uploads";
+
+    /**
+     * Creates the {@link StreamWriterOutput} used to upload a stream. Called on the thread which
+     * uploads the stream.
+     */
+    public interface WriterFactory {
+        StreamWriterOutput create(Stream stream) throws RemoteException;
+    }
+
+    /**
+     * Chooses the batch size for each stream. Only used for syncs started by the framework
+     */
+    private AdaptiveBatchController mBatchSizes;
+
+    /**
+     * Remembers uploaded points until they are deleted. Only used for syncs started by the
+     * framework
+     */
+    private UploadJournal mJournal;
+
     /**
      * Set up the sync adapter
      */
@@ -89,42 +120,62 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     @Override
-    public void onPerformSync(Account account, Bundle extras, String authority,
+    public void onPerformSync(Account account, Bundle extras, final String authority,
             ContentProviderClient provider, SyncResult syncResult) {
 
         String streamId = extras.getString(EXTRA_STREAM_ID);
         Long streamVersion = extras.getLong(EXTRA_STREAM_VERSION);
+        int maxParallelUploads = extras.getInt(EXTRA_MAX_PARALLEL_UPLOADS,
+                getContext().getResources().getInteger(R.integer.max_parallel_stream_uploads));
+
+        if (mBatchSizes == null)
+            mBatchSizes = new AdaptiveBatchController(getContext());
+        if (mJournal == null)
+            mJournal = new UploadJournal(getContext());
+        final boolean compress = getContext().getResources().getBoolean(R.bool.compress_uploads);
 
         performSyncForStreams(account, new Streams(provider, account, streamId, streamVersion),
-                new StreamWriterOutput(provider), syncResult);
+                new WriterFactory() {
+                    @Override public StreamWriterOutput create(Stream stream)
+                            throws RemoteException {
+                        // Each worker gets its own client since clients aren't meant to be
+                        // shared between threads. It is released when the writer is closed.
+                        final ContentProviderClient client = getContext().getContentResolver()
+                                .acquireContentProviderClient(authority);
+                        if (client == null)
+                            throw new RemoteException();
+                        StreamWriterOutput writer = new StreamWriterOutput(client,
+                                mBatchSizes.getBatchSize(stream),
+                                mBatchSizes.getBatchCount(stream)) {
+                            @Override public void close() {
+                                try {
+                                    super.close();
+                                } finally {
+                                    client.release();
+                                }
+                            }
+                        };
+                        writer.setCompressed(compress);
+                        return writer;
+                    }
+                }, syncResult, maxParallelUploads);
     }
 
+    /**
+     * Uploads the points for each stream one after the other using the same writer
+     *
+     * @param account
+     * @param streams
+     * @param writer
+     * @param syncResult
+     */
     public void performSyncForStreams(Account account, Streams streams, StreamWriterOutput writer,
             SyncResult syncResult) {
         Log.d("ohmage", "start stream sync");
 
         try {
             for (Stream stream : streams) {
-                try {
-                    writer.query(account.name, stream);
-
-                    while (writer.moveToNextBatch()) {
-                        sendData(account, stream, writer);
-                        syncResult.stats.numEntries += writer.deleteBatch();
-                    }
-                } catch (RetrofitError e) {
-                    if (e.getCause() instanceof IOException)
-                        syncResult.stats.numIoExceptions++;
-                    else if (e.getCause() instanceof ConversionException) {
-                        syncResult.stats.numParseExceptions++;
-                    } else {
-                        // Skipped entries for some other error
-                        syncResult.stats.numSkippedEntries++;
-                        e.printStackTrace();
-                    }
-                } finally {
-                    writer.close();
-                }
+                performSyncForStream(account, stream, writer, syncResult, new AtomicBoolean());
             }
         } catch (RemoteException e) {
             syncResult.databaseError = true;
@@ -135,6 +186,127 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
+    /**
+     * Uploads the points for up to {@code maxParallelUploads} streams at the same time. The
+     * batches for each stream are still uploaded in order by a single thread. If there is a
+     * database or authentication error for any stream, the other streams stop after the batch
+     * they are currently uploading.
+     *
+     * @param account
+     * @param streams
+     * @param writers            creates a writer for each stream
+     * @param syncResult
+     * @param maxParallelUploads the maximum number of streams to upload at the same time
+     */
+    public void performSyncForStreams(final Account account, Streams streams,
+            final WriterFactory writers, final SyncResult syncResult, int maxParallelUploads) {
+        Log.d("ohmage", "start stream sync");
+
+        if (streams.isEmpty())
+            return;
+
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(maxParallelUploads, streams.size())));
+
+        for (final Stream stream : streams) {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    if (cancelled.get())
+                        return;
+
+                    try {
+                        performSyncForStream(account, stream, writers.create(stream), syncResult,
+                                cancelled);
+                    } catch (RemoteException e) {
+                        cancelled.set(true);
+                        synchronized (syncResult) {
+                            syncResult.databaseError = true;
+                        }
+                    } catch (AuthenticationException e) {
+                        cancelled.set(true);
+                        synchronized (syncResult) {
+                            syncResult.stats.numAuthExceptions++;
+                        }
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Log.d(TAG, "Waiting for streams to finish uploading");
+            }
+        } catch (InterruptedException e) {
+            // The sync was cancelled
+            cancelled.set(true);
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            Log.d(TAG, "Finished Sync");
+        }
+    }
+
+    /**
+     * Uploads all the points for a single stream in batches
+     *
+     * @param account
+     * @param stream
+     * @param writer
+     * @param syncResult updated with the results. Synchronized on for parallel uploads
+     * @param cancelled  if set, no more batches will be uploaded
+     * @throws RemoteException         thrown if there is a problem accessing the db
+     * @throws AuthenticationException thrown if there is an auth error which can't be recovered
+     */
+    private void performSyncForStream(Account account, Stream stream, StreamWriterOutput writer,
+            SyncResult syncResult, AtomicBoolean cancelled)
+            throws RemoteException, AuthenticationException {
+        try {
+            // Points which were accepted by the server last time but never deleted
+            if (mJournal != null)
+                mJournal.replay(account, stream, writer);
+
+            writer.query(account.name, stream);
+
+            while (!cancelled.get() && writer.moveToNextBatch()) {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    sendData(account, stream, writer);
+                } catch (RetrofitError e) {
+                    if (mBatchSizes != null)
+                        mBatchSizes.onFailure(stream, writer, e);
+                    throw e;
+                }
+                if (mBatchSizes != null)
+                    mBatchSizes.onSuccess(stream, writer,
+                            SystemClock.elapsedRealtime() - start);
+                if (mJournal != null)
+                    mJournal.record(account, stream, writer.getBatchIds());
+                int count = writer.deleteBatch();
+                if (mJournal != null)
+                    mJournal.clear(account, stream);
+                synchronized (syncResult) {
+                    syncResult.stats.numEntries += count;
+                }
+            }
+        } catch (RetrofitError e) {
+            synchronized (syncResult) {
+                if (e.getCause() instanceof IOException)
+                    syncResult.stats.numIoExceptions++;
+                else if (e.getCause() instanceof ConversionException) {
+                    syncResult.stats.numParseExceptions++;
+                } else {
+                    // Skipped entries for some other error
+                    syncResult.stats.numSkippedEntries++;
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
     /**
      * Streams points over the network to the ohmage server.
      *
@@ -154,8 +326,13 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
     private void sendData(Account account, Stream stream, StreamWriterOutput data,
             boolean retry) throws AuthenticationException, RetrofitError {
         try {
-            if (accountStillExists(account))
-                ohmageService.uploadStreamData(stream.schemaId, stream.schemaVersion, data);
+            if (accountStillExists(account)) {
+                if (data.contentEncoding() != null)
+                    ohmageService.uploadStreamData(stream.schemaId, stream.schemaVersion,
+                            data.contentEncoding(), data);
+                else
+                    ohmageService.uploadStreamData(stream.schemaId, stream.schemaVersion, data);
+            }
         } catch (AuthenticationException e) {
             // If the response failed because of an auth error, we will try one more time
             if (retry) {
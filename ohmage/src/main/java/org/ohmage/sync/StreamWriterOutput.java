@@ -21,18 +21,25 @@ package org.ohmage.sync;
  */
 
 import android.content.ContentProviderClient;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.RemoteException;
-import android.text.TextUtils;
+import android.provider.BaseColumns;
 
-import com.google.gson.stream.JsonWriter;
+import com.google.common.io.CountingOutputStream;
 
+import org.ohmage.helper.IdSelectionBuilder;
 import org.ohmage.models.Stream;
+import org.ohmage.provider.StreamContentProvider;
 import org.ohmage.streams.StreamContract;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import retrofit.mime.TypedOutput;
 
@@ -46,9 +53,11 @@ public class StreamWriterOutput implements TypedOutput {
 
     private DeletingCursor mCursor;
 
-    private JsonWriter writer;
+    private final PointBuffer mBuffer = new PointBuffer();
 
-    private OutputStreamWriter mOut;
+    private final CharArrayBuffer mData = new CharArrayBuffer(1024);
+
+    private final CharArrayBuffer mMetadata = new CharArrayBuffer(1024);
 
     private long mSize;
 
@@ -58,6 +67,22 @@ public class StreamWriterOutput implements TypedOutput {
 
     private int mCurrentNum;
 
+    private long mBatchBytes;
+
+    private int mBatchCount;
+
+    private boolean mCompressed;
+
+    /**
+     * True if the last batch stopped short of its limits because its page ran out
+     */
+    private boolean mBatchCutByPage;
+
+    /**
+     * The ratio of compressed to uncompressed bytes for the last compressed batch
+     */
+    private double mCompressionRatio = 1;
+
     /**
      * Uploaded in batches based on the size of the points
      */
@@ -80,9 +105,9 @@ public class StreamWriterOutput implements TypedOutput {
         static final int PROBE_DATA = 2;
     }
 
-    private final static String pointData = "\"data\":%s";
+    private final static byte[] POINT_DATA = "{\"data\":".getBytes();
 
-    private final static String pointMetaData = "\"meta_data\":%s";
+    private final static byte[] POINT_METADATA = "\"meta_data\":".getBytes();
 
     /**
      * Create a {@link StreamWriterOutput} that reads data from the given provider and uploads
@@ -111,21 +136,38 @@ public class StreamWriterOutput implements TypedOutput {
     }
 
     /**
-     * Queries for the first batch of points for this account and stream
+     * Queries for the first page of points for this account and stream. Points are read in pages
+     * ordered by id. The stream is named in the uri so the provider only expands its blocks.
      *
      * @param accountName
      * @param stream
      * @throws RemoteException
      */
     public void query(String accountName, Stream stream) throws RemoteException {
-        setCursor(mProvider.query(
-                StreamContract.Streams.CONTENT_URI,
+        Uri uri = StreamContract.Streams.CONTENT_URI.buildUpon()
+                .appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_STREAM_ID,
+                        stream.schemaId)
+                .appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_STREAM_VERSION,
+                        String.valueOf(stream.schemaVersion)).build();
+        setCursor(KeysetDeletingCursor.query(mProvider, uri,
                 ProbeQuery.PROJECTION,
                 StreamContract.Streams.USERNAME + "=? AND "
                 + StreamContract.Streams.STREAM_ID + "=? AND "
                 + StreamContract.Streams.STREAM_VERSION + "=?", new String[]{
                 accountName, stream.schemaId, String.valueOf(stream.schemaVersion)
-        }, null));
+        }, 0, pageSize()));
+    }
+
+    /**
+     * Pages are at least {@link KeysetDeletingCursor#DEFAULT_PAGE_SIZE} points and a whole number
+     * of batches, so a batch never needs more points than a page holds and full batches don't
+     * straddle the end of a page
+     *
+     * @return the number of points to read for each page
+     */
+    int pageSize() {
+        int batches = (KeysetDeletingCursor.DEFAULT_PAGE_SIZE + mNum - 1) / mNum;
+        return batches * mNum;
     }
 
     public void setCursor(Cursor cursor) {
@@ -145,6 +187,14 @@ public class StreamWriterOutput implements TypedOutput {
     public boolean moveToNextBatch() throws RemoteException {
         ensureNoDanglingPoints();
         reset();
+        if (mCursor instanceof KeysetDeletingCursor) {
+            KeysetDeletingCursor page = (KeysetDeletingCursor) mCursor;
+            if (page.isLast() || page.isAfterLast()) {
+                if (!page.hasNextPage())
+                    return false;
+                setCursor(page.nextPage(mProvider, pageSize()));
+            }
+        }
         if (mCursor != null) {
             return !mCursor.isAfterLast();
         }
@@ -159,6 +209,32 @@ public class StreamWriterOutput implements TypedOutput {
         return mCursor.deleteMarked(mProvider, StreamContract.Streams.CONTENT_URI);
     }
 
+    /**
+     * @return the ids of the points in the current batch
+     */
+    public List<Long> getBatchIds() {
+        if (mCursor == null)
+            return Collections.emptyList();
+
+        return mCursor.getMarked();
+    }
+
+    /**
+     * Deletes points which aren't part of a batch, such as points which were uploaded by an
+     * earlier sync
+     *
+     * @param ids
+     * @return the number of points deleted
+     * @throws RemoteException
+     */
+    public int deleteIds(Collection<Long> ids) throws RemoteException {
+        int count = 0;
+        for (String selection : IdSelectionBuilder.build(BaseColumns._ID, ids)) {
+            count += mProvider.delete(StreamContract.Streams.CONTENT_URI, selection, null);
+        }
+        return count;
+    }
+
     /**
      * Instead of deleting a batch, we can restart it in the case of certain errors
      */
@@ -175,6 +251,26 @@ public class StreamWriterOutput implements TypedOutput {
         }
     }
 
+    /**
+     * Compress batches with gzip as they are written. When compressed, the maximum batch size
+     * applies to the compressed bytes. Since the deflater buffers its output, the size of each
+     * point is estimated using the compression ratio of the previous batch. The server must
+     * accept gzip encoded request bodies.
+     *
+     * @param compressed
+     */
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed;
+    }
+
+    /**
+     * @return the value of the Content-Encoding header for batches, or null if they are not
+     * encoded
+     */
+    public String contentEncoding() {
+        return mCompressed ? "gzip" : null;
+    }
+
     @Override public String fileName() {
         return null;
     }
@@ -194,50 +290,116 @@ public class StreamWriterOutput implements TypedOutput {
         if (mCurrentSize == 0 || mCurrentNum == 0)
             return;
 
-        mOut = new OutputStreamWriter(out);
-        writer = new JsonWriter(mOut);
-        writer.beginArray();
+        CountingOutputStream wire = new CountingOutputStream(out);
+        GZIPOutputStream gzip = mCompressed ? new GZIPOutputStream(wire) : null;
+        mBuffer.reset(gzip != null ? gzip : wire);
+        mBuffer.write('[');
         // the moveToNext call must be last, otherwise it will assume it was added to the batch
+        int count = 0;
         while (mCurrentSize > 0 && mCurrentNum > 0 && mCursor.moveToNext()) {
-            mCurrentSize -= writePoint();
+            long written = writePoint(count == 0);
+            mCurrentSize -= gzip != null ?
+                    Math.max(1, Math.round(written * mCompressionRatio)) : written;
             mCurrentNum--;
+            count++;
         }
-        writer.endArray();
-        writer.flush();
+        mBuffer.write(']');
+        mBuffer.flush();
+        if (gzip != null) {
+            gzip.finish();
+            mCompressionRatio = (double) wire.getCount() / mBuffer.count();
+        }
+
+        mBatchBytes = wire.getCount();
+        mBatchCount = count;
+        mBatchCutByPage = count > 0 && mCurrentSize > 0 && mCurrentNum > 0
+                          && mCursor instanceof KeysetDeletingCursor
+                          && ((KeysetDeletingCursor) mCursor).hasNextPage();
+    }
+
+    /**
+     * @return true if the last batch ended early only because its page ran out of points
+     */
+    public boolean isBatchCutByPage() {
+        return mBatchCutByPage;
+    }
+
+    /**
+     * @return the number of bytes written for the last batch
+     */
+    public long getBatchBytes() {
+        return mBatchBytes;
+    }
+
+    /**
+     * @return the number of points written for the last batch
+     */
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    public long getMaxBatchSize() {
+        return mSize;
+    }
+
+    public int getMaxBatchCount() {
+        return mNum;
+    }
+
+    /**
+     * Changes the maximum size of batches. Takes effect at the next call to
+     * {@link #moveToNextBatch()}.
+     *
+     * @param size the maximum size of a batch in bytes
+     * @param num  the maximum number of points in a batch
+     */
+    public void setBatchLimits(long size, int num) {
+        mSize = size;
+        mNum = num;
     }
 
     private void reset() {
         mCurrentSize = mSize;
         mCurrentNum = mNum;
+        mBatchBytes = 0;
+        mBatchCount = 0;
+        mBatchCutByPage = false;
     }
 
     /**
-     * Write the contents of a point from the cursor. The {@link JsonWriter} does not have a way
-     * to write json objects that are already strings so this method starts an object and then
-     * writes directly to the {@link java.io.OutputStream}. It doesn't check the validity of the
-     * json objects for efficiency.
+     * Write the contents of a point from the cursor. The data and metadata are copied straight
+     * from the cursor into a reusable buffer and encoded as utf-8 bytes as they are written so no
+     * intermediate strings are created for each point. It doesn't check the validity of the json
+     * objects for efficiency.
      *
+     * @param first true if this is the first point in the batch
      * @return the number of bytes written to the stream
      * @throws java.io.IOException thrown if there is a problem writing to the stream
      */
-    private long writePoint() throws IOException {
-        writer.beginObject();
+    private long writePoint(boolean first) throws IOException {
+        long start = mBuffer.count();
+
+        if (!first) {
+            mBuffer.write(',');
+        }
 
-        StringBuilder builder = new StringBuilder();
+        mCursor.copyStringToBuffer(ProbeQuery.PROBE_DATA, mData);
+        mCursor.copyStringToBuffer(ProbeQuery.PROBE_METADATA, mMetadata);
 
-        String data = mCursor.getString(ProbeQuery.PROBE_DATA);
-        if (!TextUtils.isEmpty(data)) {
-            builder.append(String.format(pointData, data));
+        if (mData.sizeCopied != 0) {
+            mBuffer.write(POINT_DATA);
+            mBuffer.write(mData);
+        } else {
+            mBuffer.write('{');
         }
-        String metadata = mCursor.getString(ProbeQuery.PROBE_METADATA);
-        if (!TextUtils.isEmpty(metadata)) {
-            if (builder.length() != 0) builder.append(",");
-            builder.append(String.format(pointMetaData, metadata));
+        if (mMetadata.sizeCopied != 0) {
+            if (mData.sizeCopied != 0) mBuffer.write(',');
+            mBuffer.write(POINT_METADATA);
+            mBuffer.write(mMetadata);
         }
+        mBuffer.write('}');
 
-        mOut.write(builder.toString());
-        writer.endObject();
-        return Utf8LenCounter.length(builder);
+        return mBuffer.count() - start;
     }
 
     private void ensureNoDanglingPoints() {
@@ -247,23 +409,91 @@ public class StreamWriterOutput implements TypedOutput {
         }
     }
 
-    public static class Utf8LenCounter {
-        public static int length(CharSequence sequence) {
-            int count = 0;
-            for (int i = 0, len = sequence.length(); i < len; i++) {
-                char ch = sequence.charAt(i);
+    /**
+     * Buffers bytes before they are written to the {@link OutputStream}. Characters are encoded
+     * as utf-8 directly into the buffer and the exact number of bytes written is counted as it
+     * goes. The same buffer is reused for every batch.
+     */
+    static class PointBuffer {
+
+        private final byte[] mBuf = new byte[8192];
+
+        private int mPos;
+
+        private long mCount;
+
+        private OutputStream mOut;
+
+        public void reset(OutputStream out) {
+            mOut = out;
+            mPos = 0;
+            mCount = 0;
+        }
+
+        /**
+         * @return the total number of bytes written since {@link #reset(OutputStream)}
+         */
+        public long count() {
+            return mCount + mPos;
+        }
+
+        public void write(char ascii) throws IOException {
+            ensureCapacity(1);
+            mBuf[mPos++] = (byte) ascii;
+        }
+
+        public void write(byte[] bytes) throws IOException {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuf, mPos, bytes.length);
+            mPos += bytes.length;
+        }
+
+        public void write(CharArrayBuffer chars) throws IOException {
+            char[] data = chars.data;
+            for (int i = 0, len = chars.sizeCopied; i < len; i++) {
+                char ch = data[i];
+                ensureCapacity(4);
                 if (ch <= 0x7F) {
-                    count++;
+                    mBuf[mPos++] = (byte) ch;
                 } else if (ch <= 0x7FF) {
-                    count += 2;
-                } else if (Character.isHighSurrogate(ch)) {
-                    count += 4;
-                    ++i;
+                    mBuf[mPos++] = (byte) (0xC0 | (ch >> 6));
+                    mBuf[mPos++] = (byte) (0x80 | (ch & 0x3F));
+                } else if (Character.isHighSurrogate(ch) && i + 1 < len
+                           && Character.isLowSurrogate(data[i + 1])) {
+                    int codePoint = Character.toCodePoint(ch, data[++i]);
+                    mBuf[mPos++] = (byte) (0xF0 | (codePoint >> 18));
+                    mBuf[mPos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    mBuf[mPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    mBuf[mPos++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+                    // Malformed surrogate pair
+                    mBuf[mPos++] = (byte) '?';
                 } else {
-                    count += 3;
+                    mBuf[mPos++] = (byte) (0xE0 | (ch >> 12));
+                    mBuf[mPos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                    mBuf[mPos++] = (byte) (0x80 | (ch & 0x3F));
                 }
             }
-            return count;
+        }
+
+        public void flush() throws IOException {
+            if (mPos > 0) {
+                mOut.write(mBuf, 0, mPos);
+                mCount += mPos;
+                mPos = 0;
+            }
+            mOut.flush();
+        }
+
+        private void ensureCapacity(int bytes) throws IOException {
+            if (mPos + bytes > mBuf.length) {
+                mOut.write(mBuf, 0, mPos);
+                mCount += mPos;
+                mPos = 0;
+            }
+            if (bytes > mBuf.length) {
+                throw new IOException("Can't buffer " + bytes + " bytes");
+            }
         }
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.RemoteException;
+import android.text.TextUtils;
+
+import org.ohmage.models.Stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Remembers which points the server has accepted until they are deleted. If the process dies
+ * after a batch is uploaded but before it is deleted, the points are deleted at the start of the
+ * next sync instead of being uploaded again. The ids are saved as ranges so a batch takes little
+ * space.
+ */
+public class UploadJournal {
+
+    private static final String PREFS_NAME = "stream_upload_journal";
+
+    private final SharedPreferences mPrefs;
+
+    public UploadJournal(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records that the server accepted these points. This is written to disk before it returns.
+     *
+     * @param account
+     * @param stream
+     * @param ids     the ids of the points in the batch
+     */
+    public synchronized void record(Account account, Stream stream, List<Long> ids) {
+        String key = key(account, stream);
+        String ranges = encode(ids);
+        String existing = mPrefs.getString(key, null);
+        if (!TextUtils.isEmpty(existing))
+            ranges = existing + "," + ranges;
+        mPrefs.edit().putString(key, ranges).commit();
+    }
+
+    /**
+     * Forgets the accepted points after they have been deleted
+     *
+     * @param account
+     * @param stream
+     */
+    public synchronized void clear(Account account, Stream stream) {
+        mPrefs.edit().remove(key(account, stream)).apply();
+    }
+
+    /**
+     * Deletes any points which the server accepted in an earlier sync but which were never
+     * deleted, then forgets them
+     *
+     * @param account
+     * @param stream
+     * @param writer  the writer used to delete the points
+     * @return the number of points which were deleted
+     * @throws RemoteException
+     */
+    public synchronized int replay(Account account, Stream stream, StreamWriterOutput writer)
+            throws RemoteException {
+        String ranges = mPrefs.getString(key(account, stream), null);
+        if (TextUtils.isEmpty(ranges))
+            return 0;
+
+        int count = writer.deleteIds(decode(ranges));
+        clear(account, stream);
+        return count;
+    }
+
+    /**
+     * Encodes ids as a comma separated list of ids and ranges like {@code 1-5,8,10-12}
+     */
+    static String encode(List<Long> ids) {
+        long[] sorted = new long[ids.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ids.get(i);
+        }
+        Arrays.sort(sorted);
+
+        StringBuilder ranges = new StringBuilder();
+        int i = 0;
+        while (i < sorted.length) {
+            int j = i;
+            while (j + 1 < sorted.length && sorted[j + 1] <= sorted[j] + 1) {
+                j++;
+            }
+            if (ranges.length() != 0)
+                ranges.append(',');
+            ranges.append(sorted[i]);
+            if (sorted[j] != sorted[i])
+                ranges.append('-').append(sorted[j]);
+            i = j + 1;
+        }
+        return ranges.toString();
+    }
+
+    static List<Long> decode(String ranges) {
+        List<Long> ids = new ArrayList<Long>();
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            if (dash == -1) {
+                ids.add(Long.parseLong(range));
+            } else {
+                long end = Long.parseLong(range.substring(dash + 1));
+                for (long id = Long.parseLong(range.substring(0, dash)); id <= end; id++) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static String key(Account account, Stream stream) {
+        return account.name + ":" + stream.schemaId + ":" + stream.schemaVersion;
+    }
+}
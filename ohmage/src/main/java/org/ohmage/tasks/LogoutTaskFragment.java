@@ -38,6 +38,8 @@ public class LogoutTaskFragment extends InjectedDialogFragment {
 
     @Inject AccountManager accountManager;
 
+    @Inject OhmageDbHelper dbHelper;
+
     /**
      * Future provided by removeAccount call
      */
@@ -61,8 +63,7 @@ public class LogoutTaskFragment extends InjectedDialogFragment {
         Account[] accounts = accountManager.getAccountsByType(AuthUtil.ACCOUNT_TYPE);
         //TODO: handle more than one account correctly
         if (accounts.length > 0) {
-            OhmageDbHelper db = new OhmageDbHelper(getActivity());
-            db.clearAll();
+            dbHelper.clearAll();
             TriggerFramework.resetAllTriggerSettings(getActivity());
             res = accountManager.removeAccount(accounts[0], null, null);
         }